@@ -8,6 +8,7 @@ import com.utils.ErrorMSG;
 import javax.naming.CommunicationException;
 import java.io.IOException;
 import java.rmi.NotBoundException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -95,6 +96,12 @@ public class ClientMain {
                             else serviceOp.moveCard(splittedCommand[1], splittedCommand[2],
                                     CardStatus.retriveFromString(splittedCommand[3]), CardStatus.retriveFromString(splittedCommand[4]));
                             break;
+                        case CommunicationProtocol.MOVE_CARDS_CMD:
+                            if(splittedCommand.length < 5) System.out.println(CommunicationProtocol.ANSI_RED + ErrorMSG.EMPTY_FIELD);
+                            else serviceOp.moveCards(splittedCommand[1],
+                                    Arrays.asList(splittedCommand).subList(4, splittedCommand.length),
+                                    CardStatus.retriveFromString(splittedCommand[2]), CardStatus.retriveFromString(splittedCommand[3]));
+                            break;
                         case CommunicationProtocol.CARD_HISTORY_CMD:
                             if(splittedCommand.length < 3) System.out.println(CommunicationProtocol.ANSI_RED + ErrorMSG.EMPTY_FIELD);
                             else serviceOp.getCardHistory(splittedCommand[1], splittedCommand[2]);
@@ -132,6 +139,7 @@ public class ClientMain {
                             System.out.println("- show_card          projectName     cardName");
                             System.out.println("- add_card           projectName     cardName     description");
                             System.out.println("- move_card          projectName     cardName     originList     destinationList");
+                            System.out.println("- move_cards         projectName     originList   destinationList   cardName...");
                             System.out.println("- get_card_history   projectName     cardName");
                             System.out.println("- send_chat          projectName     message");
                             System.out.println("- read_chat          projectName");
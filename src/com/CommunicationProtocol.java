@@ -1,6 +1,7 @@
 package com;
 
 import java.time.ZoneId;
+import java.util.regex.Pattern;
 
 /**
  * @author Davide Chen
@@ -35,8 +36,22 @@ public abstract class CommunicationProtocol {
     public static final int MIN_PASSWORD_LEN = 8;
     // REGEX username, only a-z, 0-9, _ allowed
     public static final String STRING_REGEX = "^[a-z0-9_]+$";
+    // STRING_REGEX compiled once, String.matches() would compile it at every call
+    public static final Pattern STRING_PATTERN = Pattern.compile(STRING_REGEX);
     public static final ZoneId ZONE_ID = ZoneId.of("Europe/Rome");
 
+    /**
+     * TCP HANDSHAKE
+     */
+    // Optional first byte sent by the client: HANDSHAKE | requested features.
+    // A frame length never starts with this bit, so the clients that don't send it
+    // are served with the JSON messages. The server replies with HANDSHAKE | accepted features
+    public static final int HANDSHAKE = 0x80;
+    // messages encoded with BinaryCodec instead of JSON
+    public static final int FEATURE_BINARY = 0x01;
+    // big responses compressed by the server (FrameCompressor)
+    public static final int FEATURE_COMPRESSION = 0x02;
+
     /**
      * RESPONSE CODE
      */
@@ -58,6 +73,12 @@ public abstract class CommunicationProtocol {
     public static final int MOVE_CARD_NOT_ALLOWED = 414;
     public static final int CANCELPROJECT_NOTCANCELABLE = 415;
     public static final int USER_NOT_LOGGED = 416;
+    // atomic batch not applied, because one of its requests failed
+    public static final int BATCH_ABORTED = 417;
+    // session token not valid, or the session has ended: the client has to log in again
+    public static final int SESSION_INVALID = 418;
+    // too many requests of the user, the response body is the number of ms to wait before retrying
+    public static final int THROTTLED = 429;
 
     /**
      * COMMANDS
@@ -75,11 +96,19 @@ public abstract class CommunicationProtocol {
     public static final String SHOW_CARD_CMD = "show_card";
     public static final String ADD_CARD_CMD = "add_card";
     public static final String MOVE_CARD_CMD = "move_card";
+    // client only: several move_card requests pipelined
+    public static final String MOVE_CARDS_CMD = "move_cards";
     public static final String CARD_HISTORY_CMD = "get_card_history";
     public static final String READ_CHAT_CMD = "read_chat";
     public static final String SEND_CHAT_CMD = "send_chat";
     public static final String CANCEL_PROJECT_CMD = "cancel_project";
     public static final String EXIT_CMD = "exit";
+    // sub-requests executed in order with a single response,
+    // argument BATCH_ATOMIC: nothing is applied if one of them fails
+    public static final String BATCH_CMD = "batch";
+    public static final String BATCH_ATOMIC = "atomic";
+    // attaches the connection to the session of the token received at login, instead of logging in again
+    public static final String RESUME_CMD = "resume";
 
     /**
      * TEXT COLOR
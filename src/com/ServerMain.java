@@ -1,9 +1,15 @@
 package com;
 
+import com.server.ServerConfig;
+import com.server.TCPOperations.ConnectionPerThreadTask;
 import com.server.TCPOperations.Database;
 import com.server.RMIOperations.RMITask;
 import com.server.TCPOperations.SelectionTask;
 import com.server.RMIOperations.RMICallbackServiceImpl;
+import com.server.TCPOperations.ServerTask;
+import com.utils.BufferPool;
+import com.utils.Metrics;
+import com.utils.PhaseTimer;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
@@ -43,7 +49,11 @@ public class ServerMain {
         userRegistration.start();
 
         // TCP connection management
-        SelectionTask selectionTask = new SelectionTask(data, callbackService);
+        ServerTask selectionTask;
+        if (ServerConfig.FRONT_END.equals("threads"))
+            selectionTask = new ConnectionPerThreadTask(data, callbackService);
+        else
+            selectionTask = new SelectionTask(data, callbackService);
         Thread tcpConnection = new Thread(selectionTask);
         tcpConnection.start();
 
@@ -57,21 +67,39 @@ public class ServerMain {
         String command = "";
         Scanner in = new Scanner(System.in);
         do {
-            System.out.println(CommunicationProtocol.ANSI_RESET + "\nEnter \"exit\" to terminate:");
+            System.out.println(CommunicationProtocol.ANSI_RESET +
+                    "\nEnter \"stats\" to print the server metrics, \"exit\" to terminate:");
             System.out.print("> ");
             command = in.nextLine();
+            if (command.equals("stats"))
+                System.out.print(Metrics.report());
         } while(!command.equals("exit"));
 
-        selectionTask.shutdownServer();
-
+        // the requests in progress are completed before saving the data
+        PhaseTimer shutdown = new PhaseTimer("Shutdown");
+        selectionTask.shutdownServer(shutdown);
         try {
+            tcpConnection.join();
             registrationTask.unbindRegistry();
             userRegistration.join();
-            tcpConnection.join();
+            shutdown.end("stop registration");
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
+        try {
+            data.flush();
+        } catch (IOException e) {
+            System.out.println("Data saving failed. Stack Trace: ");
+            e.printStackTrace();
+        }
+        shutdown.end("save data");
+        System.out.print(shutdown.report());
+        long abandoned = Metrics.counter("shutdown.abandoned").sum();
+        if (abandoned > 0)
+            System.out.println("Connections closed with requests in progress: " + abandoned);
+
+        BufferPool.reportLeaks();
         System.out.println("Server Shutdown, bye!");
     }
 }
@@ -10,6 +10,7 @@ import com.server.RMIOperations.RMIRegistrationService;
 import com.utils.*;
 
 import javax.naming.CommunicationException;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
@@ -17,7 +18,6 @@ import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -32,26 +32,32 @@ import java.util.*;
  * All operations provided by the service
  */
 public class ClientService {
-    private static final int ALLOCATION_SIZE = 2048;     // buffer allocation space
+    private static final int MAX_RETRIES = 5;               // max attempts of a request throttled by the server
+    // -Dworth.protocol=binary asks the server for the binary messages
+    private static final boolean BINARY = "binary".equals(System.getProperty("worth.protocol"));
+    // -Dworth.compression=true asks the server to compress the big responses
+    private static final boolean COMPRESSION = Boolean.getBoolean("worth.compression");
     private boolean isLogged;                               // user online status flag
     private String username;                                // to keep track of the user's username
-    private final SocketChannel socket;                     // socket for connection establishment
+    private SocketChannel socket;                           // socket for connection establishment
+    private String sessionToken;                            // to resume the session on a new connection
+    private final ByteBuffer lengthBuffer;                  // to read the size of the responses
     private final ObjectMapper mapper;                      // mapper for serialization / deserialization
+    private MessageCodec codec;                             // encoding of the messages, chosen with the handshake
+    private final FrameCompressor compressor;               // decompresses the compressed responses
+    private long nextRequestId;                             // id of the next request sent to the server
     private Map<String, UserStatus> userStatus;             // users status list
     private RMICallbackNotify callbackNotify;               // callback management
     private ProjectChatTask projectChats;                   // projects chats manager
 
     // set up the client's connection to the server
     public ClientService() throws IOException {
-        // opens TCP connection with server
-        this.socket = SocketChannel.open();
-        InetSocketAddress address = new InetSocketAddress(
-                CommunicationProtocol.SERVER_IP_ADDRESS,
-                CommunicationProtocol.SERVER_PORT
-        );
-        this.socket.connect(address); // blocking-mode for the client
-
         this.mapper = new MyObjectMapper();
+        this.lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        this.nextRequestId = 1;
+        this.compressor = new FrameCompressor();
+        this.sessionToken = null;
+        this.connect();
 
         // the following data will be initialized/updated during the login
         this.userStatus = null;
@@ -70,6 +76,7 @@ public class ClientService {
                 this.unregisterForCallback();
             }
             // preparing message to send
+            this.sessionToken = null;
             RequestMessage requestMessage = new RequestMessage(CommunicationProtocol.EXIT_CMD);
             // could throw CommunicationException due to server down
             this.sendTCPRequest(requestMessage);
@@ -80,9 +87,67 @@ public class ClientService {
             // and close communication socket
             UnicastRemoteObject.unexportObject(callbackNotify, true);
             this.socket.close();
+            this.compressor.end();
         }
     }
 
+    /**
+     * Opens the TCP connection with the server
+     */
+    private void connect() throws IOException {
+        this.socket = SocketChannel.open();
+        InetSocketAddress address = new InetSocketAddress(
+                CommunicationProtocol.SERVER_IP_ADDRESS,
+                CommunicationProtocol.SERVER_PORT
+        );
+        this.socket.connect(address); // blocking-mode for the client
+
+        this.codec = JsonCodec.INSTANCE;
+        int features = (BINARY ? CommunicationProtocol.FEATURE_BINARY : 0) |
+                (COMPRESSION ? CommunicationProtocol.FEATURE_COMPRESSION : 0);
+        if (features != 0)
+            this.handshake(features);
+    }
+
+    /**
+     * Called when the connection with the server is lost: a new connection is attached
+     * to the session of the user, without logging in again
+     */
+    private void reconnect() {
+        if (!this.isLogged || this.sessionToken == null)
+            return;
+        try {
+            this.socket.close();
+            this.connect();
+            ResponseMessage response = this.exchange(
+                    new RequestMessage(CommunicationProtocol.RESUME_CMD, this.sessionToken));
+            // the session has ended, the user has to log in again
+            if (response.getStatusCode() != CommunicationProtocol.OP_SUCCESS)
+                this.sessionToken = null;
+        } catch (IOException | CommunicationException e) {
+            // server still unreachable, retried at the next request
+        }
+    }
+
+    /**
+     * Asks the server for the optional features of the protocol
+     *
+     * @param features requested
+     */
+    private void handshake(int features) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put((byte) (CommunicationProtocol.HANDSHAKE | features)).flip();
+        while (buffer.hasRemaining())
+            socket.write(buffer);
+
+        // the server replies with the features accepted
+        buffer.clear();
+        this.readFully(buffer);
+        int accepted = buffer.get();
+        if ((accepted & CommunicationProtocol.FEATURE_BINARY) != 0)
+            this.codec = BinaryCodec.INSTANCE;
+    }
+
     /**
      * Registration via RMI
      */
@@ -123,6 +188,7 @@ public class ClientService {
 
             // everything went through
             // I'm online
+            this.sessionToken = response.getSessionToken();
             this.username = username;
             this.isLogged = true;
 
@@ -130,18 +196,16 @@ public class ClientService {
 
             try {
                 // saving server reply
-                this.userStatus = this.mapper.readValue(
-                        response.getResponseBody(),
+                this.userStatus = this.mapper.readerFor(
                         new TypeReference<Map<String, UserStatus>>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
-                Map<String, InetAddress> chatAddresses = this.mapper.readValue(
-                        response.getResponseBody2(),
+                Map<String, InetAddress> chatAddresses = this.mapper.readerFor(
                         new TypeReference<Hashtable<String, InetAddress>>() {
 
                         }
-                );
+                ).readValue(response.getResponseBody2());
 
                 // they must remain synchronized
                 this.userStatus = Collections.synchronizedMap(this.userStatus);
@@ -176,6 +240,7 @@ public class ClientService {
             if(this.username.equals(username)) {
                 // preparing message to send
                 RequestMessage requestMessage = new RequestMessage(CommunicationProtocol.LOGOUT_CMD);
+                this.sessionToken = null;
 
                 ResponseMessage response = this.sendTCPRequest(requestMessage);
 
@@ -246,11 +311,10 @@ public class ClientService {
 
 
             try {
-                List<Project> projectList = this.mapper.readValue(
-                        response.getResponseBody(),
+                List<Project> projectList = this.mapper.readerFor(
                         new TypeReference<List<Project>>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
                 System.out.println(CommunicationProtocol.ANSI_YELLOW + "\nMy projects list:");
                 if (projectList.size() == 0) System.out.println("\t empty");
@@ -287,12 +351,11 @@ public class ClientService {
             if (responseCode == CommunicationProtocol.CHARS_NOT_ALLOWED) throw new CharactersNotAllowedException();
             if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
 
-            String chatAddress = this.mapper.readValue(
-                    response.getResponseBody(),
+            String chatAddress = this.mapper.readerFor(
                     new TypeReference<String>() {
 
                     }
-            );
+            ).readValue(response.getResponseBody());
 
             projectChats.joinGroup(projectName, InetAddress.getByName(chatAddress));
 
@@ -346,11 +409,10 @@ public class ClientService {
             if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
 
             try {
-                List<String> members = this.mapper.readValue(
-                        response.getResponseBody(),
+                List<String> members = this.mapper.readerFor(
                         new TypeReference<List<String>>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
                 System.out.println(CommunicationProtocol.ANSI_YELLOW + "Project \"" + projectName + "\" member-list: ");
                 for (String member : members) {
@@ -384,11 +446,10 @@ public class ClientService {
             if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
 
             try {
-                Map<CardStatus, List<String>> cards = this.mapper.readValue(
-                        response.getResponseBody(),
+                Map<CardStatus, List<String>> cards = this.mapper.readerFor(
                         new TypeReference<Map<CardStatus, List<String>>>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
                 System.out.println(CommunicationProtocol.ANSI_YELLOW + "TODO:");
                 for (String cardName : cards.get(CardStatus.TODO)) {
@@ -436,11 +497,10 @@ public class ClientService {
             if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
 
             try {
-                Card card = this.mapper.readValue(
-                        response.getResponseBody(),
+                Card card = this.mapper.readerFor(
                         new TypeReference<CardImpl>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
                 System.out.println(CommunicationProtocol.ANSI_YELLOW + "Card name: " + card.getName());
                 System.out.println("Card description: " + card.getDescription());
@@ -513,6 +573,107 @@ public class ClientService {
         }
     }
 
+    /**
+     * Moves several cards between the same lists: the requests are sent in a single batch,
+     * so the whole operation costs one round trip and the project is saved once
+     */
+    public void moveCards(String projectName, List<String> cardNames, CardStatus from, CardStatus to)
+            throws CommunicationException, ProjectNotExistException, UnauthorizedUserException, OperationNotAllowedException {
+        if(isLogged) {
+
+            if(!this.isValid(from) || !this.isValid(to)) throw new OperationNotAllowedException();
+
+            // preparing messages to send
+            List<RequestMessage> requestMessages = new ArrayList<>(cardNames.size());
+            for (String cardName : cardNames) {
+                requestMessages.add(new RequestMessage(
+                        CommunicationProtocol.MOVE_CARD_CMD,
+                        projectName,
+                        cardName,
+                        from.name(),
+                        to.name()
+                ));
+            }
+
+            // the moves throttled by the server are sent again in a new batch, after the time it suggests
+            ResponseMessage[] responses = new ResponseMessage[cardNames.size()];
+            List<Integer> toSend = new ArrayList<>(cardNames.size());
+            for (int i = 0; i < cardNames.size(); i++)
+                toSend.add(i);
+            for (int attempt = 1; !toSend.isEmpty(); attempt++) {
+                List<RequestMessage> batch = new ArrayList<>(toSend.size());
+                for (int i : toSend)
+                    batch.add(requestMessages.get(i));
+                ResponseMessage batchResponse = this.executeBatch(batch, false);
+                if (batchResponse.getStatusCode() != CommunicationProtocol.OP_SUCCESS) throw new CommunicationException();
+                List<ResponseMessage> batchResponses = batchResponse.getResponses();
+                if (batchResponses == null || batchResponses.size() != batch.size()) throw new CommunicationException();
+
+                List<Integer> throttled = new ArrayList<>();
+                long retryAfter = 0;
+                for (int j = 0; j < batchResponses.size(); j++) {
+                    ResponseMessage response = batchResponses.get(j);
+                    responses[toSend.get(j)] = response;
+                    if (response.getStatusCode() == CommunicationProtocol.THROTTLED) {
+                        throttled.add(toSend.get(j));
+                        // the body is the number of ms to wait
+                        retryAfter = Math.max(retryAfter, response.getResponseBody() == null ?
+                                1 : response.getResponseBody().asLong(1));
+                    }
+                }
+                if (throttled.isEmpty() || attempt == MAX_RETRIES)
+                    break;
+                try {
+                    Thread.sleep(retryAfter);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                toSend = throttled;
+            }
+
+            for (int i = 0; i < responses.length; i++) {
+                int responseCode = responses[i].getStatusCode();
+                // error cases of the whole project
+                if (responseCode == CommunicationProtocol.PROJECT_NOT_EXISTS) throw new ProjectNotExistException();
+                if (responseCode == CommunicationProtocol.UNAUTHORIZED) throw new UnauthorizedUserException();
+                if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
+
+                // error cases of a single card
+                String cardName = cardNames.get(i);
+                if (responseCode == CommunicationProtocol.CARD_NOT_EXISTS)
+                    System.out.println(CommunicationProtocol.ANSI_RED + cardName + ": " + ErrorMSG.CARD_NOT_EXISTS);
+                else if (responseCode == CommunicationProtocol.MOVE_CARD_NOT_ALLOWED)
+                    System.out.println(CommunicationProtocol.ANSI_RED + cardName + ": " + ErrorMSG.OPERATION_NOT_ALLOWED);
+                else if (responseCode == CommunicationProtocol.THROTTLED)
+                    System.out.println(CommunicationProtocol.ANSI_RED + cardName + ": " + ErrorMSG.THROTTLED);
+                else if (responseCode == CommunicationProtocol.OP_SUCCESS)
+                    System.out.println(CommunicationProtocol.ANSI_GREEN + cardName + ": " + SuccessMSG.MOVE_CARD_SUCCESS);
+                else
+                    System.out.println(CommunicationProtocol.ANSI_RED + cardName + ": " + ErrorMSG.GENERIC_ERROR);
+            }
+        } else {
+            System.out.println(CommunicationProtocol.ANSI_RED + ErrorMSG.NOT_LOGGED);
+        }
+    }
+
+    /**
+     * Executes several requests with a single round trip (BATCH_CMD), the user must be logged in
+     *
+     * @param requestMessages requests to execute in order
+     * @param atomic if true the requests are applied only if all of them succeed
+     *
+     * @return response of the batch (BATCH_ABORTED if the atomic batch has not been applied)
+     *         with the responses to the requests executed, in order
+     */
+    public ResponseMessage executeBatch(List<RequestMessage> requestMessages, boolean atomic)
+            throws CommunicationException {
+        RequestMessage batch = atomic
+                ? new RequestMessage(CommunicationProtocol.BATCH_CMD, requestMessages, CommunicationProtocol.BATCH_ATOMIC)
+                : new RequestMessage(CommunicationProtocol.BATCH_CMD, requestMessages);
+        return this.sendTCPRequest(batch);
+    }
+
     public void getCardHistory(String projectName, String cardName)
             throws CommunicationException, CardNotExistException, UnauthorizedUserException, ProjectNotExistException {
         if(isLogged) {
@@ -533,11 +694,10 @@ public class ClientService {
             if (responseCode == CommunicationProtocol.COMMUNICATION_ERROR) throw new CommunicationException();
 
             try {
-                List<Movement> movements = this.mapper.readValue(
-                        response.getResponseBody(),
+                List<Movement> movements = this.mapper.readerFor(
                         new TypeReference<List<Movement>>() {
                         }
-                );
+                ).readValue(response.getResponseBody());
 
                 DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
                 System.out.println(CommunicationProtocol.ANSI_YELLOW + "History of the " + cardName + " card of the " + projectName + " project:");
@@ -666,7 +826,9 @@ public class ClientService {
     }
 
     /**
-     * Sends a TCP request to the server and waits for a response from it
+     * Sends a TCP request to the server and waits for a response from it.
+     * If the server throttles the request, it is sent again after the time suggested by the server.
+     * If the connection is lost, a new one is opened for the following requests
      *
      * @param requestMessage to be sent to the server
      *
@@ -675,52 +837,45 @@ public class ClientService {
      * @throws CommunicationException if there are communication errors with the server
      * */
     private ResponseMessage sendTCPRequest(RequestMessage requestMessage) throws CommunicationException {
-        try {
-            // convert messages to string
-            String stringRequest = this.mapper.writeValueAsString(requestMessage);
-
-            // preparing message
-            byte[] byteMessage = stringRequest.getBytes(StandardCharsets.UTF_8);
-
-            // get the message size
-            int messageLength = byteMessage.length;
-
-            // write the message and its length in the buffer
-            ByteBuffer sendBuffer = ByteBuffer.allocate(Integer.BYTES + messageLength);
-            sendBuffer.putInt(messageLength).put(byteMessage);
-            sendBuffer.flip();
-            while(sendBuffer.hasRemaining())
-                socket.write(sendBuffer);
-            sendBuffer.clear();
-
-            // waits the response from the server
-            ByteBuffer readBuffer = ByteBuffer.allocate(ALLOCATION_SIZE);
-            int byteReaded;
-            int totalReaded = 0;
-            messageLength = -1;
-            StringBuilder responseMessage = new StringBuilder();
-            do {
-                byteReaded = socket.read(readBuffer);
-                // if there are errors, throw exception
-                if (byteReaded == -1)
-                    throw new CommunicationException();
-
-                totalReaded += byteReaded;
-
-                readBuffer.flip();
-
-                // save message size
-                if (messageLength == -1)
-                    messageLength = readBuffer.getInt();
-
-                responseMessage.append(StandardCharsets.UTF_8.decode(readBuffer));
-
-                readBuffer.clear();
-            } while (totalReaded < messageLength);
+        for (int attempt = 1; ; attempt++) {
+            ResponseMessage response;
+            try {
+                response = this.exchange(requestMessage);
+            } catch (CommunicationException e) {
+                // the following requests use a new connection; this one is not sent again,
+                // the server could have executed it
+                this.reconnect();
+                throw e;
+            }
+            if (response.getStatusCode() != CommunicationProtocol.THROTTLED || attempt == MAX_RETRIES)
+                return response;
 
-            String stringResponse = responseMessage.toString();
+            // the body is the number of ms to wait
+            try {
+                Thread.sleep(response.getResponseBody().asLong(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return response;
+            }
+        }
+    }
 
-            ResponseMessage response = this.mapper.readValue(stringResponse, new TypeReference<ResponseMessage>() {});
+    /**
+     * Sends a request and reads its response, the many operations of a command go in a BATCH
+     *
+     * @param requestMessage request to send
+     *
+     * @return the response of the request
+     *
+     * @throws CommunicationException if there are communication problems with the server
+     */
+    private ResponseMessage exchange(RequestMessage requestMessage) throws CommunicationException {
+        try {
+            this.writeRequest(requestMessage);
+            ResponseMessage response = this.readResponse();
+            // the id correlates the response with its request
+            if (response.getId() != requestMessage.getId())
+                throw new IOException("Unexpected response " + response.getId());
             return response;
         } catch (IOException e) {
             // exception thrown if there are communication problems with the server
@@ -730,6 +885,76 @@ public class ClientService {
         }
     }
 
+    /**
+     * Assigns an id to the request and writes it
+     *
+     * @param requestMessage request to write
+     */
+    private void writeRequest(RequestMessage requestMessage) throws IOException {
+        requestMessage.setId(this.nextRequestId++);
+
+        // write the message and its length in the buffer
+        FrameOutputStream frame = new FrameOutputStream();
+        try {
+            this.codec.encodeRequest(requestMessage, frame);
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+        ByteBuffer sendBuffer = frame.toFrame();
+        try {
+            while (sendBuffer.hasRemaining())
+                socket.write(sendBuffer);
+        } finally {
+            BufferPool.release(sendBuffer);
+        }
+    }
+
+    /**
+     * Waits the next response from the server
+     */
+    private ResponseMessage readResponse() throws IOException {
+        ByteBuffer readBuffer = null;
+        ByteBuffer decompressed = null;
+        try {
+            // first its size...
+            this.lengthBuffer.clear();
+            this.readFully(this.lengthBuffer);
+            int messageLength = this.lengthBuffer.getInt();
+            boolean compressed = (messageLength & FrameCompressor.COMPRESSED) != 0;
+            messageLength &= ~FrameCompressor.COMPRESSED;
+
+            // ...then the message
+            readBuffer = BufferPool.acquire(messageLength);
+            readBuffer.limit(messageLength);
+            this.readFully(readBuffer);
+
+            if (!compressed)
+                return this.codec.decodeResponse(readBuffer);
+            decompressed = this.compressor.decompress(readBuffer);
+            return this.codec.decodeResponse(decompressed);
+        } finally {
+            BufferPool.release(readBuffer);
+            BufferPool.release(decompressed);
+        }
+    }
+
+    /**
+     * Reads from the server until the buffer is full
+     *
+     * @param buffer to fill, it is flipped at the end
+     *
+     * @throws IOException if the connection has been closed
+     */
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            // if there are errors, throw exception
+            if (socket.read(buffer) == -1)
+                throw new EOFException();
+        }
+        buffer.flip();
+    }
+
     /*
      * Callback RMI operations
      */
@@ -42,9 +42,27 @@ public class CardImpl implements Serializable, Card {
         return this.movements;
     }
 
+    /**
+     * @return copy of the card with its own movement history
+     */
+    public CardImpl copy() {
+        CardImpl copy = new CardImpl();
+        copy.name = this.name;
+        copy.description = this.description;
+        copy.status = this.status;
+        copy.movements = new ArrayList<>(this.movements);
+        return copy;
+    }
+
     public void changeStatus(CardStatus newStatus) {
-        Movement mov = new Movement(this.status, newStatus);
-        this.status = newStatus;
+        this.addMovement(new Movement(this.status, newStatus));
+    }
+
+    /**
+     * Adds a movement to the history, the card goes to its state of arrival
+     */
+    public void addMovement(Movement mov) {
+        this.status = mov.getTo();
         this.movements.add(mov);
     }
 
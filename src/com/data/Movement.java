@@ -28,6 +28,15 @@ public class Movement implements Serializable {
         this.when = LocalDateTime.now(ZoneId.systemDefault());
     }
 
+    /**
+     * Movement that has already happened, restored from the storage
+     */
+    public Movement(CardStatus from, CardStatus to, LocalDateTime when) {
+        this.from = from;
+        this.to = to;
+        this.when = when;
+    }
+
     public CardStatus getFrom() {
         return from;
     }
@@ -40,10 +40,18 @@ public class Project implements Serializable {
     public Project() {}
 
     public Project(String projectName, String creator) throws NoSuchAddressException, NoSuchPortException {
+        this(projectName, creator, LocalDateTime.now(CommunicationProtocol.ZONE_ID));
+    }
+
+    /**
+     * Project created at creationDateTime, restored from the storage
+     */
+    public Project(String projectName, String creator, LocalDateTime creationDateTime)
+            throws NoSuchAddressException, NoSuchPortException {
         this.name = projectName;
         this.members = new ArrayList<>();
         this.members.add(creator);
-        this.creationDateTime = LocalDateTime.now(CommunicationProtocol.ZONE_ID);
+        this.creationDateTime = creationDateTime;
         this.chatAddress = MulticastAddressManager.getAddress();
         this.statusLists = new HashMap<>();
         CardStatus[] values = CardStatus.values();
@@ -77,6 +85,66 @@ public class Project implements Serializable {
         this.cards = cards;
     }
 
+    /**
+     * @return false if the cards haven't been loaded, or have been dropped by unloadCards()
+     */
+    public boolean hasCardList() {
+        return this.cards != null;
+    }
+
+    /**
+     * this method is called by the server to drop the cards from memory,
+     * they have to be loaded again with initCardList before using them
+     *
+     */
+    public void unloadCards() {
+        this.cards = null;
+    }
+
+    /**
+     * Copy of the project that can be read while the original is modified
+     * the cards are not copied
+     *
+     * @return copy of the project with its own members and status lists
+     */
+    public Project snapshot() {
+        Project copy = new Project();
+        copy.name = this.name;
+        copy.members = new ArrayList<>(this.members);
+        copy.creationDateTime = this.creationDateTime;
+        copy.chatAddress = this.chatAddress;
+        copy.statusLists = new HashMap<>();
+        for (Map.Entry<CardStatus, List<String>> entry : this.statusLists.entrySet()) {
+            copy.statusLists.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * Copy of the whole project, cards included
+     *
+     * @return backup that can be given to restore()
+     */
+    public Project backup() {
+        Project copy = this.snapshot();
+        copy.cards = new ArrayList<>(this.cards.size());
+        for (CardImpl card : this.cards) {
+            copy.cards.add(card.copy());
+        }
+        return copy;
+    }
+
+    /**
+     * Brings the project back to the state of a backup
+     *
+     * @param backup obtained by backup() of this project, it must not be used anymore
+     */
+    public void restore(Project backup) {
+        this.members = backup.members;
+        this.statusLists = backup.statusLists;
+        this.cards = backup.cards;
+    }
+
     public String getName() {
         return this.name;
     }
@@ -144,6 +212,25 @@ public class Project implements Serializable {
         thisCard.changeStatus(to);
     }
 
+    /**
+     * Repeats a movement of a card restored from the storage, it has already been checked by moveCard
+     *
+     * @param cardName name of the card
+     * @param mov movement of the card
+     *
+     * @throws CardNotExistException if the card doesn't exist
+     * @throws OperationNotAllowedException if the card is not in the original state of the movement
+     */
+    public void restoreMovement(String cardName, Movement mov)
+            throws CardNotExistException, OperationNotAllowedException {
+        CardImpl card = this.getCard(cardName);
+        if (card.getStatus() != mov.getFrom())
+            throw new OperationNotAllowedException();
+        this.statusLists.get(mov.getFrom()).remove(cardName);
+        this.statusLists.get(mov.getTo()).add(cardName);
+        card.addMovement(mov);
+    }
+
     public void addCard(CardImpl card) throws CardAlreadyExistsException {
         if (this.cards.contains(card))
             throw new CardAlreadyExistsException();
@@ -32,7 +32,7 @@ public class RMIRegistrationServiceImpl extends UnicastRemoteObject implements R
     @Override
     public synchronized String register (String username, String password)
             throws RemoteException, CharactersNotAllowedException, UsernameNotAvailableException, PasswordTooShortException {
-        if (!username.matches(CommunicationProtocol.STRING_REGEX))
+        if (!CommunicationProtocol.STRING_PATTERN.matcher(username).matches())
             throw new CharactersNotAllowedException();
         if (password.length() < CommunicationProtocol.MIN_PASSWORD_LEN)
             throw new PasswordTooShortException();
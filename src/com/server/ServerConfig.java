@@ -0,0 +1,124 @@
+package com.server;
+
+import com.CommunicationProtocol;
+
+/**
+ * @author Davide Chen
+ *
+ * Tuning parameters of the server
+ * Every value can be overridden at startup with a system property (java -Dworth.xxx=value ...)
+ */
+public abstract class ServerConfig {
+
+    /**
+     * TCP FRONT END
+     */
+    // "selector": NIO selectors (SelectionTask)
+    // "threads": one (virtual) thread per connection with blocking I/O (ConnectionPerThreadTask)
+    public static final String FRONT_END = System.getProperty("worth.frontend", "selector");
+    // number of selector threads serving the accepted connections
+    // 0 = a single selector accepts and serves all the connections
+    public static final int SELECTOR_THREADS = Integer.getInteger("worth.selectors", 0);
+    // number of worker threads executing the requests
+    // 0 = the requests are executed by the selector threads
+    public static final int WORKER_THREADS = Integer.getInteger("worth.workers", 0);
+    // empty selectNow() rounds that a selector thread spins before blocking in select() (busy-poll mode),
+    // each selector thread keeps a CPU busy while spinning (0 = always block)
+    public static final int SELECT_SPINS = Integer.getInteger("worth.select.spins", 0);
+    // bounds (in bytes, powers of 2) of the size of the reads of each connection, adapted to its requests
+    public static final int MIN_READ_SIZE = Integer.getInteger("worth.read.minSize", 512);
+    public static final int MAX_READ_SIZE = Integer.getInteger("worth.read.maxSize", 64 * 1024);
+
+    /**
+     * CONNECTIONS
+     */
+    // max number of open connections, the others are closed as soon as they are accepted
+    public static final int MAX_CONNECTIONS = Integer.getInteger("worth.connections.max", 10000);
+    // ms without receiving or sending anything before a connection is closed (0 = never)
+    public static final long IDLE_TIMEOUT = Long.getLong("worth.timeout.idle", 60 * 60 * 1000);
+    // ms to receive the rest of a frame once it has started (0 = no limit)
+    public static final long READ_TIMEOUT = Long.getLong("worth.timeout.read", 30 * 1000);
+    // ms that a user remains ONLINE after losing the connection, waiting for the session to be resumed (0 = none)
+    public static final long SESSION_GRACE = Long.getLong("worth.session.grace", 15 * 1000);
+    // resolution (ms) of the timeouts of the selector front end
+    public static final long TIMEOUT_TICK = Long.getLong("worth.timeout.tick", 1000);
+    // max size (in bytes) of a request, a longer frame closes the connection
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("worth.frame.maxSize", 4 * 1024 * 1024);
+    // bytes that all the connections together can hold in partially received requests,
+    // above it the server stops reading new requests until some of them are completed
+    public static final long INBOUND_BUDGET = Long.getLong("worth.inbound.budget", 64L * 1024 * 1024);
+    // bytes of responses that a connection can have waiting to be sent (selector front end)
+    public static final long MAX_OUTBOUND_BYTES = Long.getLong("worth.outbound.maxBytes", 4L * 1024 * 1024);
+    // what happens to a connection above MAX_OUTBOUND_BYTES:
+    // "backpressure": its requests are not read until half of the responses have been sent
+    // "disconnect": the connection is closed
+    public static final String OUTBOUND_POLICY = System.getProperty("worth.outbound.policy", "backpressure");
+    // ms that the responses of a connection can wait without any byte being sent, then it is closed (0 = no limit)
+    public static final long WRITE_TIMEOUT = Long.getLong("worth.timeout.write", 30 * 1000);
+    // ms at shutdown to complete the requests in progress and send their responses,
+    // then the connections still busy are closed anyway
+    public static final long SHUTDOWN_TIMEOUT = Long.getLong("worth.shutdown.timeout", 10 * 1000);
+
+    /**
+     * LOGIN
+     */
+    // threads hashing the passwords of the logins, outside of the threads serving the connections
+    public static final int LOGIN_THREADS = Integer.getInteger("worth.login.threads",
+            Runtime.getRuntime().availableProcessors());
+    // logins waiting for a thread, the others are THROTTLED
+    public static final int LOGIN_QUEUE = Integer.getInteger("worth.login.queueSize", 1024);
+
+    /**
+     * TCP PROTOCOL
+     */
+    // features that the clients can request with the handshake
+    public static final int PROTOCOL_FEATURES =
+            (Boolean.parseBoolean(System.getProperty("worth.binary", "true")) ? CommunicationProtocol.FEATURE_BINARY : 0) |
+            (Boolean.parseBoolean(System.getProperty("worth.compression", "true")) ? CommunicationProtocol.FEATURE_COMPRESSION : 0);
+    // min size (in bytes) of the responses compressed, for the clients that asked for the compression
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("worth.compression.threshold", 1024);
+    // Deflater level, from 1 (fastest) to 9 (smallest)
+    public static final int COMPRESSION_LEVEL = Integer.getInteger("worth.compression.level", 1);
+    // max number of requests in a batch
+    public static final int MAX_BATCH_SIZE = Integer.getInteger("worth.batch.maxSize", 1000);
+
+    /**
+     * RATE LIMITING
+     */
+    // disabled by default: the clients that don't know THROTTLED, and the batches with hundreds of requests
+    // (each one is charged), would fail. E.g. read.rate=200, read.burst=400, write.rate=50, write.burst=100
+    // requests per second of each user that only read the data (list_projects, show_*, get_card_history),
+    // and requests executed at once after a pause (0 = no limit)
+    public static final double READ_RATE = Double.parseDouble(System.getProperty("worth.ratelimit.read.rate", "0"));
+    public static final int READ_BURST = Integer.getInteger("worth.ratelimit.read.burst", 400);
+    // requests per second of each user that modify the data and are saved on disk
+    // (create_project, add_member, add_card, move_card, cancel_project) and their burst (0 = no limit)
+    public static final double WRITE_RATE = Double.parseDouble(System.getProperty("worth.ratelimit.write.rate", "0"));
+    public static final int WRITE_BURST = Integer.getInteger("worth.ratelimit.write.burst", 100);
+
+    /**
+     * STORAGE
+     */
+    // "files": each change rewrites the JSON files of the user, project and card modified
+    // "journal": each change appends a record to a log, the whole data is written to periodic snapshots;
+    // at its first start the journal imports the JSON files, which are not updated anymore
+    public static final String STORAGE = System.getProperty("worth.storage", "files");
+    // threads reading and parsing the JSON files at startup
+    public static final int LOAD_THREADS = Integer.getInteger("worth.load.threads",
+            Runtime.getRuntime().availableProcessors());
+    // records appended to the journal between two snapshots
+    public static final int SNAPSHOT_RECORDS = Integer.getInteger("worth.journal.snapshotRecords", 10000);
+    // when the files written are forced to the disk: "none" (left to the operating system),
+    // "interval" (every SYNC_INTERVAL ms, the last changes can be lost)
+    // or "per-batch" (before the response, the concurrent operations share a single fsync)
+    public static final String SYNC_POLICY = System.getProperty("worth.storage.sync", "none");
+    public static final long SYNC_INTERVAL = Long.getLong("worth.storage.syncInterval", 1000);
+    // with the "files" storage, max ms between a change and the rewrite of its files by a background thread,
+    // which writes each project and card modified once however many times it changed (0 = written by the operation)
+    public static final long WRITE_BEHIND_INTERVAL = Long.getLong("worth.storage.writeBehind", 0);
+    // projects and cards waiting to be written, beyond which the operations wait for the background thread
+    public static final int WRITE_BEHIND_MAX_DIRTY = Integer.getInteger("worth.storage.writeBehind.maxDirty", 10000);
+    // with the "files" storage, estimated bytes of the cards kept in memory: the cards are loaded the first time
+    // they are used and those of the least recently used projects are dropped beyond it (0 = all always in memory)
+    public static final long RESIDENCY_BUDGET = Long.getLong("worth.residency.budget", 0);
+}
@@ -1,6 +1,23 @@
 package com.server.TCPOperations;
 
+import com.CommunicationProtocol;
+import com.server.ServerConfig;
+import com.utils.BinaryCodec;
+import com.utils.BufferPool;
+import com.utils.FrameCompressor;
+import com.utils.JsonCodec;
+import com.utils.MessageCodec;
+import com.utils.Metrics;
+import com.utils.TimingWheel;
+
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * @author Davide Chen
@@ -8,27 +25,237 @@ import java.nio.ByteBuffer;
  * Attachment of a Selector's key
  */
 public class Attachment {
-    private String username;    // username of the online user
-    private ByteBuffer buffer;  // buffer associated with the key
+    private static final LongAdder binaryConnections = Metrics.counter("connections.binary");
+    private volatile String username;               // username of the online user
+    private MessageCodec codec;                     // encoding of the messages, chosen with the handshake
+    private boolean negotiated;                     // the first byte of the connection has been examined
+    private FrameCompressor compressor;             // null if the client didn't ask for the compression
+    private final FrameDecoder decoder;             // partial request received from the connection
+    private final ReadSizer readSizer;              // size of the reads, adapted to the requests
+    private final Queue<ByteBuffer> responses;      // responses waiting to be written (selector thread only)
+    private CompletableFuture<Void> lastRequest;    // last request of the connection handed to the executor
+    private boolean closing;                        // the connection is closed as soon as the responses are written
+    private boolean finishing;                      // output shut down at shutdown, the input is discarded
+    private boolean budgetPaused;                   // not reading because the InboundBudget is exhausted
+    private boolean outboundPaused;                 // not reading because too many responses are waiting
+    private long outboundBytes;                     // bytes of the responses waiting to be written
+    private long writeSince;                        // ms since the responses are waiting without progress, -1 if none
+    private long lastActivity;                      // ms of the last read or write (selector thread only)
+    private long partialSince;                      // ms when the partial frame started, -1 if none
+    private TimingWheel.Timeout<SelectionKey> timeout;  // next check of the timeouts, null if not scheduled
 
     public Attachment() {
         username = null;
-        buffer = null;
+        codec = JsonCodec.INSTANCE;
+        negotiated = false;
+        compressor = null;
+        decoder = new FrameDecoder();
+        readSizer = new ReadSizer();
+        responses = new ArrayDeque<>();
+        lastRequest = CompletableFuture.completedFuture(null);
+        closing = false;
+        finishing = false;
+        budgetPaused = false;
+        outboundPaused = false;
+        outboundBytes = 0;
+        writeSince = -1;
+        lastActivity = 0;
+        partialSince = -1;
+        timeout = null;
     }
 
     public String getUsername() {
         return this.username;
     }
 
-    public ByteBuffer getBuffer() {
-        return this.buffer;
-    }
-
     public void setUsername(String username) {
         this.username = username;
     }
 
-    public void setBuffer(ByteBuffer buffer) {
-        this.buffer = buffer;
+    MessageCodec getCodec() {
+        return this.codec;
+    }
+
+    boolean isNegotiated() {
+        return this.negotiated;
+    }
+
+    /**
+     * Called with the first byte of the connection, if it's a handshake (CommunicationProtocol.HANDSHAKE)
+     * the features requested by the client and supported by the server are enabled
+     *
+     * @param first byte received, it must be consumed only if it's a handshake
+     *
+     * @return the byte to send back to the client, -1 if it's not a handshake
+     */
+    int negotiate(int first) {
+        this.negotiated = true;
+        if ((first & CommunicationProtocol.HANDSHAKE) == 0)
+            return -1; // JSON client, the byte belongs to the first frame
+
+        int features = first & ~CommunicationProtocol.HANDSHAKE & ServerConfig.PROTOCOL_FEATURES;
+        if ((features & CommunicationProtocol.FEATURE_BINARY) != 0) {
+            this.codec = BinaryCodec.INSTANCE;
+            binaryConnections.increment();
+        }
+        if ((features & CommunicationProtocol.FEATURE_COMPRESSION) != 0)
+            this.compressor = new FrameCompressor(ServerConfig.COMPRESSION_LEVEL, ServerConfig.COMPRESSION_THRESHOLD);
+        return CommunicationProtocol.HANDSHAKE | features;
+    }
+
+    /**
+     * @param frame pooled buffer with a response (length + message), ready for writing
+     *
+     * @return the frame to send, compressed if the client asked for it and the message is big enough
+     */
+    ByteBuffer compress(ByteBuffer frame) {
+        return compressor == null ? frame : compressor.compress(frame);
+    }
+
+    FrameDecoder getDecoder() {
+        return this.decoder;
+    }
+
+    ReadSizer getReadSizer() {
+        return this.readSizer;
+    }
+
+    Queue<ByteBuffer> getResponses() {
+        return this.responses;
+    }
+
+    boolean isClosing() {
+        return this.closing;
+    }
+
+    void setClosing() {
+        this.closing = true;
+    }
+
+    boolean isFinishing() {
+        return this.finishing;
+    }
+
+    void setFinishing() {
+        this.finishing = true;
+    }
+
+    /**
+     * @return true if the requests of the connection must not be read
+     */
+    boolean isReadPaused() {
+        return this.budgetPaused || this.outboundPaused;
+    }
+
+    boolean isBudgetPaused() {
+        return this.budgetPaused;
+    }
+
+    void setBudgetPaused(boolean budgetPaused) {
+        this.budgetPaused = budgetPaused;
+    }
+
+    boolean isOutboundPaused() {
+        return this.outboundPaused;
+    }
+
+    void setOutboundPaused(boolean outboundPaused) {
+        this.outboundPaused = outboundPaused;
+    }
+
+    long getOutboundBytes() {
+        return this.outboundBytes;
+    }
+
+    /**
+     * @param bytes queued (positive) or written (negative)
+     */
+    void addOutboundBytes(long bytes) {
+        this.outboundBytes += bytes;
+    }
+
+    long getWriteSince() {
+        return this.writeSince;
+    }
+
+    void setWriteSince(long writeSince) {
+        this.writeSince = writeSince;
+    }
+
+    long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    void setLastActivity(long now) {
+        this.lastActivity = now;
+    }
+
+    long getPartialSince() {
+        return this.partialSince;
+    }
+
+    /**
+     * Called after every read
+     *
+     * @param partial true if a frame has been started and not completed
+     * @param now current time (ms)
+     */
+    void updatePartial(boolean partial, long now) {
+        if (!partial) {
+            this.partialSince = -1;
+        } else if (this.partialSince == -1) {
+            this.partialSince = now;
+        }
+    }
+
+    void setTimeout(TimingWheel.Timeout<SelectionKey> timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gives the buffers of the connection back to the pool and frees the compressor,
+     * called by the selector thread
+     * when the connection is closed
+     *
+     * @param executor of the requests, the compressor is freed after the requests still in progress
+     *                 (they compress their responses)
+     */
+    void release(Executor executor) {
+        if (timeout != null) timeout.cancel();
+        if (compressor != null)
+            this.submit(compressor::end, executor);
+        decoder.release();
+        ByteBuffer buffer;
+        while ((buffer = responses.poll()) != null)
+            BufferPool.release(buffer);
+    }
+
+    /**
+     * @return true if some tasks submitted are not completed yet
+     */
+    boolean hasPendingRequests() {
+        return !this.lastRequest.isDone();
+    }
+
+    /**
+     * Executes a task of the connection after all the tasks previously submitted,
+     * so the requests of a connection are executed in the order they were received
+     *
+     * @param task to execute, it must not throw exceptions
+     * @param executor where the task is executed
+     */
+    void submit(Runnable task, Executor executor) {
+        this.lastRequest = this.lastRequest.thenRunAsync(task, executor);
+    }
+
+    /**
+     * Like submit(), but the following tasks wait for the completion of the future returned by the task,
+     * so a request completed asynchronously keeps its place in the order of the connection
+     *
+     * @param task to execute, its future must not complete exceptionally
+     * @param executor where the task is executed
+     */
+    void submitAsync(Supplier<CompletableFuture<Void>> task, Executor executor) {
+        this.lastRequest = this.lastRequest.thenComposeAsync(ignored -> task.get(), executor);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,64 @@
+package com.server.TCPOperations;
+
+import com.utils.RequestMessage;
+
+import java.net.DatagramPacket;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Davide Chen
+ *
+ * Request being executed by the RequestDispatcher,
+ * it is passed along the interceptors to the handler of the command
+ */
+class CommandContext {
+    private final RequestMessage request;               // request received from the client
+    private final Attachment attachment;                // attachment of the client's connection
+    private final List<DatagramPacket> chatMessages;    // messages for the project chats, null if not in a batch
+
+    CommandContext(RequestMessage request, Attachment attachment, List<DatagramPacket> chatMessages) {
+        this.request = request;
+        this.attachment = attachment;
+        this.chatMessages = chatMessages;
+    }
+
+    RequestMessage getRequest() {
+        return this.request;
+    }
+
+    String getCommand() {
+        return this.request.getCommand();
+    }
+
+    /**
+     * @return arguments of the request, empty if the client didn't send any
+     */
+    List<String> getArguments() {
+        List<String> arguments = this.request.getArguments();
+        return arguments == null ? Collections.emptyList() : arguments;
+    }
+
+    String getArgument(int index) {
+        return this.getArguments().get(index);
+    }
+
+    Attachment getAttachment() {
+        return this.attachment;
+    }
+
+    /**
+     * @return the user who made the request, null if not logged in
+     */
+    String getUsername() {
+        return this.attachment.getUsername();
+    }
+
+    /**
+     * @return where the messages for the project chats are added to be sent when the batch is completed,
+     *         null if they have to be sent immediately
+     */
+    List<DatagramPacket> getChatMessages() {
+        return this.chatMessages;
+    }
+}
@@ -0,0 +1,23 @@
+package com.server.TCPOperations;
+
+import com.utils.ResponseMessage;
+
+/**
+ * @author Davide Chen
+ *
+ * Executes one command of the protocol.
+ * The number of arguments, the login and the validators of the command
+ * are checked by the RequestDispatcher before calling the handler
+ */
+@FunctionalInterface
+interface CommandHandler {
+    /**
+     * @param context request to execute
+     *
+     * @return response for the client, null if the connection has to be closed
+     *
+     * @throws Exception the exceptions of com.exceptions are converted by the RequestDispatcher
+     *                   into the status code of the response, the others are errors of the server
+     */
+    ResponseMessage handle(CommandContext context) throws Exception;
+}
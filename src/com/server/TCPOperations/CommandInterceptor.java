@@ -0,0 +1,23 @@
+package com.server.TCPOperations;
+
+import com.utils.ResponseMessage;
+
+/**
+ * @author Davide Chen
+ *
+ * Hook executed around every command, requests of a batch included.
+ * The interceptors are called in the order they have been added to the RequestDispatcher,
+ * each one decides whether to continue with the next one
+ */
+@FunctionalInterface
+interface CommandInterceptor {
+    /**
+     * @param context request being executed
+     * @param next rest of the chain: the following interceptors and the handler of the command
+     *
+     * @return response for the client, the one of next or a different one to reject the request
+     *
+     * @throws Exception thrown by next, or to reject the request with the status code of the exception
+     */
+    ResponseMessage intercept(CommandContext context, CommandHandler next) throws Exception;
+}
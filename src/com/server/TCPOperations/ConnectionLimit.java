@@ -0,0 +1,58 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.Metrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Number of open connections, shared by the front ends:
+ * above ServerConfig.MAX_CONNECTIONS the new connections are rejected as soon as they are accepted
+ */
+abstract class ConnectionLimit {
+    private static final AtomicInteger open = new AtomicInteger(0);
+    private static final LongAdder rejected = Metrics.counter("connections.rejected");
+
+    static {
+        Metrics.gauge("connections.open", open::get);
+    }
+
+    /**
+     * @return true if the new connection can be served, it must be followed by release() when it is closed
+     */
+    static boolean tryAcquire() {
+        int current;
+        do {
+            current = open.get();
+            if (current >= ServerConfig.MAX_CONNECTIONS) {
+                rejected.increment();
+                return false;
+            }
+        } while (!open.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Called when a connection obtained with tryAcquire() is closed
+     */
+    static void release() {
+        open.decrementAndGet();
+    }
+
+    /**
+     * Closes a rejected connection with a reset, without waiting for the client
+     *
+     * @param client socket of the connection
+     */
+    static void reject(Socket client) {
+        try {
+            client.setSoLinger(true, 0);
+            client.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,321 @@
+package com.server.TCPOperations;
+
+import com.CommunicationProtocol;
+import com.server.RMIOperations.RMICallbackServiceImpl;
+import com.server.ServerConfig;
+import com.utils.*;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Task for managing the client's requests with one thread per connection,
+ * alternative to SelectionTask: each thread reads a request, executes it and writes the response
+ * using blocking I/O and the same message format (length + JSON message).
+ * Virtual threads are used when the JDK offers them, platform threads otherwise.
+ * The idle and read timeouts are the timeouts of the blocking reads,
+ * when the InboundBudget is exhausted the threads wait before reading a new request.
+ * The blocking writes have no timeout: a checker closes every TIMEOUT_TICK ms the sockets
+ * stuck in a write for WRITE_TIMEOUT ms. There is no MAX_OUTBOUND_BYTES limit,
+ * a thread writes one response at a time and waits for the socket
+ */
+public class ConnectionPerThreadTask implements ServerTask {
+    private static final int ACCEPT_TIMEOUT = 1000;         // ms, to check the termination flag
+    private static final LongAdder expiredIdle = Metrics.counter("connections.expired_idle");
+    private static final LongAdder expiredRead = Metrics.counter("connections.expired_read");
+    private static final LongAdder expiredWrite = Metrics.counter("connections.expired_write");
+    private static final LongAdder abandoned = Metrics.counter("shutdown.abandoned");
+    private final RequestDispatcher dispatcher;             // executes the clients' requests
+    private final RMICallbackServiceImpl callbackService;   // callback service
+    // open connections, closed at shutdown, with the ms since they are writing (-1 if they are not)
+    private final Map<Socket, AtomicLong> connections;
+    private volatile boolean terminated;
+    private volatile ServerSocket serverSocket;             // closed at shutdown, to stop accepting
+    private volatile long drainDeadline;                    // System.nanoTime() when the draining ends anyway
+    private volatile PhaseTimer phases;                     // phases of the shutdown, null until it starts
+
+    public ConnectionPerThreadTask(TCPOperations data, RMICallbackServiceImpl callbackService) {
+        this.callbackService = callbackService;
+
+        this.dispatcher = new RequestDispatcher(data, callbackService);
+        this.connections = new ConcurrentHashMap<>();
+        this.terminated = false;
+    }
+
+    @Override
+    public void run() {
+        ExecutorService threads = newConnectionExecutor();
+        ScheduledExecutorService writeChecker = null;
+        if (ServerConfig.WRITE_TIMEOUT > 0) {
+            writeChecker = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "write-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writeChecker.scheduleWithFixedDelay(this::checkWrites,
+                    ServerConfig.TIMEOUT_TICK, ServerConfig.TIMEOUT_TICK, TimeUnit.MILLISECONDS);
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            this.serverSocket = serverSocket;
+            serverSocket.bind(new InetSocketAddress(
+                    CommunicationProtocol.SERVER_IP_ADDRESS,
+                    CommunicationProtocol.SERVER_PORT
+            ));
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+
+            while (!terminated) {
+                Socket client;
+                try {
+                    client = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (!ConnectionLimit.tryAcquire()) {
+                    ConnectionLimit.reject(client);
+                    continue;
+                }
+                AtomicLong writeSince = new AtomicLong(-1);
+                connections.put(client, writeSince);
+                threads.execute(() -> this.serve(client, writeSince));
+            }
+        } catch (IOException e) {
+            // closed by shutdownServer()
+            if (!terminated)
+                e.printStackTrace();
+        }
+        if (phases == null)
+            drainDeadline = System.nanoTime();
+
+        // the threads waiting for a request read the end of the stream and end,
+        // the others end after sending the response of the request in progress
+        for (Socket client : connections.keySet()) {
+            try {
+                client.shutdownInput();
+            } catch (IOException ignored) {}
+        }
+        threads.shutdown();
+        try {
+            threads.awaitTermination(Math.max(0, drainDeadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        // the blocked threads are woken up by closing their sockets,
+        // the requests still running are completed before the data is saved
+        abandoned.add(connections.size());
+        for (Socket client : connections.keySet()) {
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            threads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (phases != null)
+            phases.end("drain connections");
+
+        if (writeChecker != null)
+            writeChecker.shutdownNow();
+        dispatcher.shutdown();
+        if (phases != null)
+            phases.end("stop threads");
+    }
+
+    /**
+     * Serves the requests of a client until the connection is closed
+     *
+     * @param client socket of the connection
+     * @param writeSince ms since the thread is writing a response, -1 if it is not
+     */
+    private void serve(Socket client, AtomicLong writeSince) {
+        Attachment attachment = new Attachment();
+        boolean reading = false;    // a frame has been started
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            // half-dead connections are detected by the operating system too
+            client.setKeepAlive(true);
+            client.setSoTimeout(timeout(ServerConfig.IDLE_TIMEOUT));
+
+            // the first byte can be a handshake
+            in.mark(1);
+            int reply = attachment.negotiate(in.readUnsignedByte());
+            if (reply == -1) {
+                in.reset();
+            } else {
+                out.write(reply);
+                out.flush();
+            }
+            MessageCodec codec = attachment.getCodec();
+            WritableByteChannel channel = Channels.newChannel(out);
+
+            while (true) {
+                // read message length and message, once started the frame must arrive within the read timeout
+                if (in.available() == 0)
+                    InboundBudget.awaitAvailable();
+                client.setSoTimeout(timeout(ServerConfig.IDLE_TIMEOUT));
+                int first = in.read();
+                if (first == -1) throw new EOFException();
+                reading = true;
+                client.setSoTimeout(timeout(ServerConfig.READ_TIMEOUT));
+                int messageLength = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                if (messageLength < 0 || messageLength > ServerConfig.MAX_FRAME_SIZE)
+                    throw new IOException("Invalid frame length: " + messageLength);
+                RequestMessage requestMessage;
+                InboundBudget.reserve(messageLength);
+                try {
+                    byte[] byteRequest = new byte[messageLength];
+                    in.readFully(byteRequest);
+                    reading = false;
+
+                    requestMessage = codec.decodeRequest(ByteBuffer.wrap(byteRequest));
+                } finally {
+                    InboundBudget.release(messageLength);
+                }
+
+                ResponseMessage response = await(dispatcher.dispatch(requestMessage, attachment));
+
+                // the client asked to close the connection
+                if (response == null)
+                    break;
+                response.setId(requestMessage.getId());
+
+                FrameOutputStream frame = new FrameOutputStream();
+                try {
+                    codec.encodeResponse(response, frame);
+                } catch (IOException e) {
+                    frame.release();
+                    throw e;
+                }
+                ByteBuffer buffer = attachment.compress(frame.toFrame());
+                writeSince.set(now());
+                try {
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    // pipelined requests already received: their responses are sent together
+                    if (in.available() == 0)
+                        out.flush();
+                } finally {
+                    writeSince.set(-1);
+                    BufferPool.release(buffer);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof SocketTimeoutException)
+                (reading ? expiredRead : expiredIdle).increment();
+            // when the client abruptly breaks the connection with the server
+            // if the user was online, I have to log out
+            dispatcher.disconnect(attachment);
+        } finally {
+            // the requests are executed by this thread, none is in progress
+            attachment.release(Runnable::run);
+            connections.remove(client);
+            ConnectionLimit.release();
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Closes the sockets stuck in a write for WRITE_TIMEOUT ms, their threads get an exception.
+     * Called every TIMEOUT_TICK ms
+     */
+    private void checkWrites() {
+        long now = now();
+        for (Map.Entry<Socket, AtomicLong> connection : connections.entrySet()) {
+            long since = connection.getValue().get();
+            if (since == -1 || now - since < ServerConfig.WRITE_TIMEOUT)
+                continue;
+            expiredWrite.increment();
+            try {
+                connection.getKey().close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * @return current time (ms) of the monotonic clock used by the write timeout
+     */
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Waits for the response of a request, that can be completed by another thread (e.g. the login pool)
+     *
+     * @throws IOException if the request can't be completed
+     */
+    private static ResponseMessage await(CompletableFuture<ResponseMessage> response) throws IOException {
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * @param millis timeout of the server configuration, 0 = no timeout
+     *
+     * @return the timeout for Socket.setSoTimeout() (0 = infinite)
+     */
+    private static int timeout(long millis) {
+        return (int) Math.min(millis, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return executor that runs each task on a new virtual thread (JDK 21+),
+     *         or on a platform thread if virtual threads are not available
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("One virtual thread per connection");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available, one platform thread per connection");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    public void shutdownServer(PhaseTimer phases) {
+        callbackService.notifyServerDown();
+        phases.end("notify clients");
+
+        this.phases = phases;
+        this.drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.SHUTDOWN_TIMEOUT);
+        this.terminated = true;
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.server.TCPOperations;
 
 import com.CommunicationProtocol;
+import com.server.ServerConfig;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.data.*;
@@ -14,35 +15,84 @@ import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Davide Chen
  *
  * Class that acts as a database, containing all application data
+ * It is shared by several threads: each project is guarded by its own lock
+ * and the operations return copies of the data that could be modified later
  */
 public class Database implements UserRegistration, TCPOperations {
     private final static String STORAGE_FOLDER_PATH = "./database/";
     private final static String PROJECTS_FOLDER_PATH = STORAGE_FOLDER_PATH + "projects/";
     private final static String USERS_FOLDER_PATH = STORAGE_FOLDER_PATH + "users/";
     private final static String PROJECT_CONFIG_FILENAME = "info.json";
+    private final static String JOURNAL_FOLDER_PATH = STORAGE_FOLDER_PATH + "journal/";
     // buffer allocation space
     private static final int BUFFER_SIZE = 1024*1024;
+    private static final PasswordManager PASSWORD_MANAGER = new PasswordManager(); // stateless, thread safe
     private final Map<String, User> users;
     private final Map<String, Project> projects;
     private final Map<String, UserStatus> userStatus;
     private final ObjectMapper mapper;
+    // projects (and names of their cards) modified by the batch running on the thread, saved at its end
+    private final ThreadLocal<Map<Project, Set<String>>> batchChanges;
+    // projects locked by the batch running on the thread, the only ones that it can use
+    private final ThreadLocal<Set<Project>> batchLocks;
+    // forces the files written to the disk (ServerConfig.SYNC_POLICY)
+    private final GroupCommit commit;
+    // log of the changes, null if they are saved to the JSON files (ServerConfig.STORAGE)
+    private final Journal journal;
+    // writes the projects modified in background, null if they are written by the operations
+    private final WriteBehind writeBehind;
+    // keeps in memory only the cards of the projects used recently, null if all the cards are always in memory
+    private final ResidencyManager residency;
+    // records of the atomic batch running on the thread, appended at its end if it is completed
+    private final ThreadLocal<List<JournalRecord>> batchRecords;
+
+    /**
+     * Loads something from a file, on one of the threads loading the data
+     */
+    private interface FileLoader<T> {
+        T load(File file) throws IOException;
+    }
 
     public Database() throws IOException {
         this.users = new ConcurrentHashMap<>();
-        this.projects = new HashMap<>();
+        this.projects = new ConcurrentHashMap<>();
         this.userStatus = new ConcurrentHashMap<>();
+        this.batchChanges = new ThreadLocal<>();
+        this.batchLocks = new ThreadLocal<>();
+        this.batchRecords = new ThreadLocal<>();
+        this.commit = new GroupCommit(ServerConfig.SYNC_POLICY);
+        this.journal = "journal".equals(ServerConfig.STORAGE) ? new Journal(JOURNAL_FOLDER_PATH, this.commit) : null;
+        // the records of the journal are already small
+        this.writeBehind = this.journal == null && ServerConfig.WRITE_BEHIND_INTERVAL > 0 ?
+                new WriteBehind(this::storeBatchChanges, this.commit) : null;
+        // the cards are loaded again from their files, which the journal doesn't update
+        this.residency = this.journal == null && ServerConfig.RESIDENCY_BUDGET > 0 ?
+                new ResidencyManager(ServerConfig.RESIDENCY_BUDGET,
+                        project -> this.writeBehind != null && this.writeBehind.isDirty(project)) : null;
 
         // Jackson object
         mapper = new MyObjectMapper();
@@ -52,7 +102,46 @@ public class Database implements UserRegistration, TCPOperations {
 
     private void init() throws IOException {
         System.out.println("Server data initialization - start");
+        PhaseTimer phases = new PhaseTimer("Data initialization");
 
+        JournalSnapshot snapshot = this.journal != null ? this.journal.loadSnapshot() : null;
+        if (snapshot != null) {
+            phases.end("read snapshot");
+            this.loadSnapshot(snapshot);
+            phases.end("assign addresses");
+        } else {
+            this.loadFiles(phases);
+        }
+
+        int replayed = 0;
+        if (this.journal != null) {
+            replayed = this.journal.replay(snapshot, this::replay);
+            this.journal.start(this::takeSnapshot);
+            phases.end("replay journal");
+            // first start of the journal: the data imported from the files is its first snapshot
+            if (snapshot == null) {
+                this.journal.snapshot();
+                phases.end("write snapshot");
+            }
+        }
+
+        System.out.format(CommunicationProtocol.ANSI_YELLOW + "%d users retrieved\n", this.users.size());
+        System.out.format("%d projects retrieved\n", this.projects.size());
+        if (this.journal != null)
+            System.out.format("%d journal records replayed\n", replayed);
+        System.out.print(phases.report());
+        System.out.println(CommunicationProtocol.ANSI_GREEN + "Server data initialization - successful");
+    }
+
+    /**
+     * Loads the users and the projects from the JSON files,
+     * the files are read and parsed by ServerConfig.LOAD_THREADS threads, each with its own buffer
+     *
+     * @param phases measures the loading of the users and of the projects
+     *
+     * @throws IOException if there are errors in the upload
+     */
+    private void loadFiles(PhaseTimer phases) throws IOException {
         // folder management
         File directory = new File(STORAGE_FOLDER_PATH);
         if (!directory.exists()){
@@ -70,79 +159,109 @@ public class Database implements UserRegistration, TCPOperations {
             System.out.format("Folder %s created\n", USERS_FOLDER_PATH);
         }
 
-        // buffer allocation
-        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // buffer allocation, one for each thread loading the files
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService loaders = Executors.newFixedThreadPool(ServerConfig.LOAD_THREADS, task -> {
+            Thread thread = new Thread(task, "loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        //FileFilter filters only files with .json extension
-        FileFilter fileFilter =
-                pathname -> pathname.isFile() && pathname.getPath().endsWith(".json");
+        try {
+            //FileFilter filters only files with .json extension
+            FileFilter fileFilter =
+                    pathname -> pathname.isFile() && pathname.getPath().endsWith(".json");
 
-        // loading of users
-        int numOfUsers = 0;
-        directory = new File(USERS_FOLDER_PATH);
-        // get user list
-        File[] usersList = directory.listFiles(fileFilter);
-        if (usersList != null) {
-            for (File userFile : usersList) {
-                // load user in the data structure
-                this.loadUser(userFile, buffer);
-
-                numOfUsers++;
+            // loading of users
+            directory = new File(USERS_FOLDER_PATH);
+            // get user list
+            File[] usersList = directory.listFiles(fileFilter);
+            if (usersList != null) {
+                for (User user : this.loadAll(loaders, usersList, file -> this.loadUser(file, buffers.get()))) {
+                    // insert in the data structures
+                    this.users.put(user.getUsername(), user);
+                    this.userStatus.put(user.getUsername(), UserStatus.OFFLINE);
+                }
             }
-        }
+            phases.end("load users");
 
-        // loading projects
-        int numOfProjects = 0;
-        directory = new File(PROJECTS_FOLDER_PATH);
-        // get list of project directories
-        File[] projectsList = directory.listFiles(File::isDirectory);
-        if (projectsList != null) {
-            for (File projectDir : projectsList) {
-                // each project contains the project file and the card files
-                File[] projectFileList = projectDir.listFiles(fileFilter);
-                if (projectFileList != null) {
-                    if (projectFileList.length == 0) {
-                        System.out.format("Project %s doesn't have config file (%s)\n",
-                                projectDir.getName(), PROJECT_CONFIG_FILENAME);
-                    }
-                    // list of project cards
-                    List<CardImpl> projectCardList = new ArrayList<>();
-                    File projectInfo = null;
-                    // card processing
-                    for (File cardFile : projectFileList) {
-                        // if the file is the project file, I save it and I process it at the end
-                        if (cardFile.getName().equals(PROJECT_CONFIG_FILENAME)) {
-                            projectInfo = cardFile;
-                            continue;
-                        }
-
-                        //loading the card into the project card list
-                        this.loadCard(cardFile, buffer, projectCardList);
-                    }
+            // loading projects
+            directory = new File(PROJECTS_FOLDER_PATH);
+            // get list of project directories
+            File[] projectsList = directory.listFiles(File::isDirectory);
+            List<Project> loaded = new ArrayList<>();
+            if (projectsList != null) {
+                for (Project project : this.loadAll(loaders, projectsList,
+                        projectDir -> this.loadProject(projectDir, fileFilter, buffers.get()))) {
+                    if (project != null)
+                        loaded.add(project);
+                }
+            }
+            phases.end("load projects");
 
+            // the addresses don't depend on the order in which the threads have loaded the projects
+            this.assignAddresses(loaded);
+            phases.end("assign addresses");
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
 
-                    // now I can process the project and load it on the data structure
-                    try {
-                        this.loadProject(projectInfo, buffer, projectCardList);
-                    } catch (NoSuchAddressException e) {
-                        System.err.println("There are no more multicast addresses...");
-                        throw new IOException();
-                    } catch (AlreadyInitialedException e) {
-                        System.err.println("Project seems to be already initialized...");
-                        throw new IOException();
-                    } catch (NoSuchPortException e) {
-                        System.err.println("There are no more ports...");
-                        throw new IOException();
-                    }
+    /**
+     * Loads some files in parallel
+     *
+     * @param loaders threads that load the files
+     * @param files to load
+     * @param loader loads a file, on one of the loaders
+     *
+     * @throws IOException if there are errors in the upload of a file
+     *
+     * @return what has been loaded from each file, in the order of the files
+     */
+    private <T> List<T> loadAll(ExecutorService loaders, File[] files, FileLoader<T> loader) throws IOException {
+        List<Future<T>> futures = new ArrayList<>(files.length);
+        for (File file : files)
+            futures.add(loaders.submit(() -> loader.load(file)));
 
-                    numOfProjects++;
-                }
+        List<T> loaded = new ArrayList<>(files.length);
+        for (Future<T> future : futures) {
+            try {
+                loaded.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
             }
         }
+        return loaded;
+    }
 
-        System.out.format(CommunicationProtocol.ANSI_YELLOW + "%d users retrieved\n", numOfUsers);
-        System.out.format("%d projects retrieved\n", numOfProjects);
-        System.out.println(CommunicationProtocol.ANSI_GREEN + "Server data initialization - successful");
+    /**
+     * Gives a chat address to the projects loaded and inserts them in the data structures,
+     * in the order of their names so that each project always gets the same address
+     *
+     * @param loaded projects, without a chat address
+     *
+     * @throws IOException if there are no more addresses
+     */
+    private void assignAddresses(List<Project> loaded) throws IOException {
+        loaded.sort(Comparator.comparing(Project::getName));
+        for (Project project : loaded) {
+            try {
+                project.initChatAddress(MulticastAddressManager.getAddress());
+            } catch (NoSuchAddressException e) {
+                System.err.println("There are no more multicast addresses...");
+                throw new IOException();
+            } catch (AlreadyInitialedException e) {
+                System.err.println("Project seems to be already initialized...");
+                throw new IOException();
+            }
+            this.projects.put(project.getName(), project);
+        }
     }
 
     @Override
@@ -154,10 +273,21 @@ public class Database implements UserRegistration, TCPOperations {
 
         // saving user to file
         try {
-            this.storeUser(newUser);
+            if (this.journal != null)
+                this.journal.append(JournalRecord.registerUser(newUser));
+            else
+                this.storeUser(newUser);
         } catch (IOException e) {
             e.printStackTrace();
+            // the user has not been registered, the others must not see it
+            this.userStatus.remove(username);
             this.users.remove(username);
+            return;
+        }
+        try {
+            this.sync();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -172,15 +302,26 @@ public class Database implements UserRegistration, TCPOperations {
             if (status == UserStatus.ONLINE) {
                 throw new AlreadyLoggedInException();
             }
-            String hash = theUser.getHashPassword();
-            String salt = theUser.getSalt();
-            PasswordManager passwordManager = new PasswordManager();
-            if (!passwordManager.isExpectedPassword(password, salt, hash))
-                throw new WrongPasswordException();
-            this.userStatus.replace(username, UserStatus.ONLINE);
+            this.checkPassword(theUser, password);
+            // the user could have logged in from another connection in the meantime
+            if (!this.userStatus.replace(username, UserStatus.OFFLINE, UserStatus.ONLINE))
+                throw new AlreadyLoggedInException();
         }
     }
 
+    @Override
+    public void checkPassword(String username, String password) throws UserNotExistException, WrongPasswordException {
+        User theUser = this.users.get(username);
+        if (theUser == null)
+            throw new UserNotExistException();
+        this.checkPassword(theUser, password);
+    }
+
+    private void checkPassword(User user, String password) throws WrongPasswordException {
+        if (!PASSWORD_MANAGER.isExpectedPassword(password, user.getSalt(), user.getHashPassword()))
+            throw new WrongPasswordException();
+    }
+
     @Override
     public void logout(String username) throws UserNotExistException {
         User theUser = this.users.get(username);
@@ -196,10 +337,16 @@ public class Database implements UserRegistration, TCPOperations {
         if (!this.users.containsKey(username))
             throw new UserNotExistException();
         List<Project> toReturn = new ArrayList<>();
-        for (String key : this.projects.keySet()) {
-            Project p = this.projects.get(key);
-            if (p.getMembers().contains(username))
-                toReturn.add(p);
+        Set<Project> locked = this.batchLocks.get();
+        for (Project p : this.projects.values()) {
+            // in a batch only the projects that it has locked, the others were created after its start
+            if (locked != null && !locked.contains(p))
+                continue;
+            synchronized (p) {
+                // the snapshot is serialized later, outside the lock
+                if (p.getMembers().contains(username))
+                    toReturn.add(p.snapshot());
+            }
         }
         return toReturn;
     }
@@ -210,120 +357,254 @@ public class Database implements UserRegistration, TCPOperations {
         if (this.projects.containsKey(projectName))
             throw new ProjectAlreadyExistException();
         Project newProject = new Project(projectName, whoRequest);
-        this.storeProject(newProject);
-        this.projects.put(projectName, newProject);
+        synchronized (newProject) {
+            // another user could have created the project in the meantime
+            if (this.projects.putIfAbsent(projectName, newProject) != null) {
+                MulticastAddressManager.freeAddress(newProject.getChatAddress());
+                throw new ProjectAlreadyExistException();
+            }
+            try {
+                if (this.journal != null)
+                    this.log(JournalRecord.createProject(newProject));
+                else
+                    this.storeProject(newProject);
+            } catch (IOException e) {
+                this.projects.remove(projectName, newProject);
+                MulticastAddressManager.freeAddress(newProject.getChatAddress());
+                throw e;
+            }
+        }
+        this.sync();
     }
 
     @Override
     public void addMember(String projectName, String username, String whoRequest)
             throws ProjectNotExistException, UnauthorizedUserException, UserAlreadyMemberException, UserNotExistException, IOException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        if (!this.users.containsKey(username))
-            throw new UserNotExistException();
-        project.addMember(username);
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            if (!this.users.containsKey(username))
+                throw new UserNotExistException();
+            project.addMember(username);
 
-        this.storeProject(project);
+            this.storeChanges(project, null, JournalRecord.addMember(projectName, username));
+        }
+        this.sync();
     }
 
     @Override
     public List<String> showMembers(String projectName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        List<String> members = project.getMembers();
-        if (!members.contains(whoRequest))
-            throw new UnauthorizedUserException();
-        return members;
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            return new ArrayList<>(project.getMembers());
+        }
     }
 
     @Override
     public Map<CardStatus, List<String>> showCards(String projectName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        return project.getStatusLists();
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            return project.snapshot().getStatusLists();
+        }
     }
 
     @Override
-    public CardImpl showCard(String projectName, String cardName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        return project.getCard(cardName);
+    public CardImpl showCard(String projectName, String cardName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException, IOException {
+        Project project = this.getProject(projectName);
+        CardImpl card;
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            this.loadCards(project);
+            card = project.getCard(cardName);
+        }
+        this.evict();
+        return card;
     }
 
     @Override
     public void addCard(String projectName, String cardName, String description, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardAlreadyExistsException, IOException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        CardImpl newCard = new CardImpl(cardName, description);
-        project.addCard(newCard);
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            this.loadCards(project);
+            CardImpl newCard = new CardImpl(cardName, description);
+            project.addCard(newCard);
+            if (this.residency != null)
+                this.residency.grow(project, ResidencyManager.estimate(newCard));
 
-        this.storeCard(newCard, projectName);
-        this.storeProject(project);
+            this.storeChanges(project, newCard, JournalRecord.addCard(projectName, newCard));
+        }
+        this.sync();
     }
 
     @Override
     public void moveCard(String projectName, String cardName, CardStatus from, CardStatus to, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException, OperationNotAllowedException, IOException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        project.moveCard(cardName, from, to);
-        CardImpl moved = project.getCard(cardName);
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            this.loadCards(project);
+            project.moveCard(cardName, from, to);
+            CardImpl moved = project.getCard(cardName);
+            if (this.residency != null)
+                this.residency.grow(project, ResidencyManager.MOVEMENT_BYTES);
 
-        this.storeCard(moved, projectName);
-        this.storeProject(project);
+            this.storeChanges(project, moved, JournalRecord.moveCard(projectName, moved));
+        }
+        this.sync();
     }
 
     @Override
-    public List<Movement> getCardHistory(String projectName, String cardName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException {
-        Project project;
-        if ((project = this.projects.get(projectName)) == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        CardImpl card = project.getCard(cardName);
-        return card.getMovements();
+    public List<Movement> getCardHistory(String projectName, String cardName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException, IOException {
+        Project project = this.getProject(projectName);
+        List<Movement> history;
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            this.loadCards(project);
+            CardImpl card = project.getCard(cardName);
+            history = new ArrayList<>(card.getMovements());
+        }
+        this.evict();
+        return history;
     }
 
     @Override
-    public void cancelProject(String projectName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, ProjectNotCancelableException {
-        Project project = this.projects.get(projectName);
-        if (project == null)
-            throw new ProjectNotExistException();
-        if (!project.getMembers().contains(whoRequest))
-            throw new UnauthorizedUserException();
-        if (!project.isCancelable())
-            throw new ProjectNotCancelableException();
-        // free the multicast address
-        MulticastAddressManager.freeAddress(project.getChatAddress());
-        // remove the project
-        this.projects.remove(projectName);
-
-        // removing project files
-        File projectDir = new File(PROJECTS_FOLDER_PATH + projectName);
-        if (projectDir.exists() && projectDir.isDirectory()) {
-            //elimino tutti i file al suo interno
-            File[] files = projectDir.listFiles();
-            for (File file : files) {
-                file.delete();
+    public void cancelProject(String projectName, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException, ProjectNotCancelableException, IOException {
+        Project project = this.getProject(projectName);
+        synchronized (project) {
+            this.checkMember(project, whoRequest);
+            if (!project.isCancelable())
+                throw new ProjectNotCancelableException();
+
+            if (this.journal != null)
+                this.log(JournalRecord.cancelProject(projectName));
+
+            // removing project files
+            // (before removing the project, so that a new project with the same name can't be affected)
+            File projectDir = new File(PROJECTS_FOLDER_PATH + projectName);
+            if (projectDir.exists() && projectDir.isDirectory()) {
+                //elimino tutti i file al suo interno
+                File[] files = projectDir.listFiles();
+                for (File file : files) {
+                    file.delete();
+                }
+                // delete the directory
+                projectDir.delete();
+            }
+
+            // remove the project
+            this.projects.remove(projectName);
+            if (this.residency != null)
+                this.residency.remove(project);
+            // free the multicast address
+            MulticastAddressManager.freeAddress(project.getChatAddress());
+        }
+        this.sync();
+    }
+
+    @Override
+    public boolean executeBatch(Collection<String> projectNames, boolean atomic, Batch batch) throws IOException {
+        if (this.batchChanges.get() != null)
+            throw new IllegalStateException("Batch already running on this thread");
+
+        // the locks are always acquired in the same order (by name)
+        List<Project> toLock = new ArrayList<>();
+        for (String projectName : new TreeSet<>(projectNames != null ? projectNames : this.projects.keySet())) {
+            Project project = this.projects.get(projectName);
+            if (project != null)
+                toLock.add(project);
+        }
+        Set<Project> locked = Collections.newSetFromMap(new IdentityHashMap<>());
+        locked.addAll(toLock);
+        this.batchLocks.set(locked);
+        try {
+            return this.executeBatch(toLock, 0, atomic, batch);
+        } finally {
+            this.batchLocks.remove();
+            // a single sync for the whole batch, after releasing the locks
+            this.sync();
+        }
+    }
+
+    /**
+     * Acquires the lock of the projects from index onwards, then executes the batch
+     */
+    private boolean executeBatch(List<Project> toLock, int index, boolean atomic, Batch batch) throws IOException {
+        if (index < toLock.size()) {
+            synchronized (toLock.get(index)) {
+                return this.executeBatch(toLock, index + 1, atomic, batch);
+            }
+        }
+
+        // all the locks are held
+        Map<Project, Project> backups = new IdentityHashMap<>();
+        if (atomic) {
+            for (Project project : toLock) {
+                this.loadCards(project);
+                backups.put(project, project.backup());
+            }
+        }
+
+        Map<Project, Set<String>> changes = new IdentityHashMap<>();
+        this.batchChanges.set(changes);
+        // the atomic batches only modify the projects locked, whose records can wait until the end
+        List<JournalRecord> records = new ArrayList<>();
+        if (atomic)
+            this.batchRecords.set(records);
+        boolean completed = false;
+        try {
+            completed = batch.execute();
+        } finally {
+            this.batchChanges.remove();
+            this.batchRecords.remove();
+            List<Project> pinned = new ArrayList<>(changes.keySet());
+            try {
+                if (atomic && !completed) {
+                    // nothing has been saved yet, the projects go back to the stored state
+                    for (Map.Entry<Project, Project> entry : backups.entrySet()) {
+                        entry.getKey().restore(entry.getValue());
+                        if (this.residency != null)
+                            this.residency.resize(entry.getKey(), ResidencyManager.estimate(entry.getValue().getAllCards()));
+                    }
+                    changes.clear();
+                    records.clear();
+                }
+                if (this.journal != null) {
+                    // a single write for the whole batch
+                    this.journal.append(records);
+                } else if (this.writeBehind != null) {
+                    for (Map.Entry<Project, Set<String>> entry : changes.entrySet())
+                        this.writeBehind.mark(entry.getKey(), entry.getValue());
+                } else {
+                    for (Map.Entry<Project, Set<String>> entry : changes.entrySet())
+                        this.storeBatchChanges(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                if (this.residency != null) {
+                    for (Project project : pinned)
+                        this.residency.unpin(project);
+                }
             }
-            // delete the directory
-            projectDir.delete();
         }
+        return completed;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // every change is saved (or marked for the write-behind) by the operation that makes it,
+        // holding the lock of its project: nothing else is dirty once the operations still in progress are completed
+        for (Project project : this.projects.values()) {
+            synchronized (project) {
+                // waiting for the lock is enough
+            }
+        }
+        if (this.writeBehind != null)
+            this.writeBehind.close();
+        // the journal is replayed faster from a new snapshot
+        if (this.journal != null)
+            this.journal.close();
+        this.commit.close();
     }
 
     @Override
@@ -333,13 +614,288 @@ public class Database implements UserRegistration, TCPOperations {
 
     @Override
     public String getProjectChatAddress(String projectName) throws ProjectNotExistException {
-        Project project;
-        project = this.projects.get(projectName);
+        // the address never changes, no lock is taken (even for a project created by the running batch)
+        Project project = this.projects.get(projectName);
         if (project == null)
             throw new ProjectNotExistException();
         return project.getChatAddress();
     }
 
+    /**
+     * @param projectName name of the project
+     *
+     * @throws ProjectNotExistException if the project doesn't exist
+     *
+     * @return the project, the caller has to acquire its lock before using it
+     */
+    private Project getProject(String projectName) throws ProjectNotExistException {
+        Project project = this.projects.get(projectName);
+        if (project == null)
+            throw new ProjectNotExistException();
+        // created after the batch running on the thread has taken its locks:
+        // locking it now, out of their order, could deadlock with another batch
+        Set<Project> locked = this.batchLocks.get();
+        if (locked != null && !locked.contains(project))
+            throw new ProjectNotExistException();
+        return project;
+    }
+
+    /**
+     * Check, holding the lock of the project, that the project still exists
+     * and that the user is one of its members
+     *
+     * @param project to check
+     * @param whoRequest user who requested the operation
+     *
+     * @throws ProjectNotExistException if the project has been canceled in the meantime
+     * @throws UnauthorizedUserException if the user does not have the necessary permissions
+     */
+    private void checkMember(Project project, String whoRequest) throws ProjectNotExistException, UnauthorizedUserException {
+        if (this.projects.get(project.getName()) != project)
+            throw new ProjectNotExistException();
+        if (!project.getMembers().contains(whoRequest))
+            throw new UnauthorizedUserException();
+    }
+
+    /**
+     * Saves a project and one of its cards modified by an operation,
+     * if a batch is running on the thread they are saved at the end of the batch
+     *
+     * @param project modified, its lock must be held
+     * @param card modified, null if only the project has been modified
+     * @param record of the change, appended instead if the journal is used
+     *
+     * @throws IOException if there are errors in saving the project
+     */
+    private void storeChanges(Project project, CardImpl card, JournalRecord record) throws IOException {
+        if (this.journal != null) {
+            this.log(record);
+            return;
+        }
+
+        Map<Project, Set<String>> changes = this.batchChanges.get();
+        if (changes == null && this.writeBehind != null) {
+            this.writeBehind.mark(project, card != null ?
+                    Collections.singleton(card.getName()) : Collections.emptySet());
+            return;
+        }
+        if (changes == null) {
+            if (card != null)
+                this.storeCard(card, project.getName());
+            this.storeProject(project);
+            return;
+        }
+
+        // the cards are needed until they are saved, at the end of the batch
+        if (this.residency != null && !changes.containsKey(project))
+            this.residency.pin(project);
+        Set<String> cardNames = changes.computeIfAbsent(project, p -> new HashSet<>());
+        if (card != null)
+            cardNames.add(card.getName());
+    }
+
+    /**
+     * Waits until the changes of the operation are durable (ServerConfig.SYNC_POLICY),
+     * or until the write-behind has room for more changes;
+     * if a batch is running on the thread they are synced at the end of the batch
+     *
+     * @throws IOException if the changes can't be forced to the disk
+     */
+    private void sync() throws IOException {
+        if (this.batchChanges.get() != null)
+            return;
+        if (this.writeBehind != null)
+            this.writeBehind.awaitCapacity();
+        this.commit.await();
+        this.evict();
+    }
+
+    /**
+     * Loads the cards of a project from its files, if they are not in memory
+     *
+     * @param project whose cards are needed, its lock must be held
+     *
+     * @throws IOException if there are errors in the upload
+     */
+    private void loadCards(Project project) throws IOException {
+        if (this.residency == null)
+            return;
+        if (project.hasCardList()) {
+            this.residency.hit(project);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<CardImpl> cards = new ArrayList<>();
+        File[] cardFiles = new File(PROJECTS_FOLDER_PATH + project.getName()).listFiles(
+                pathname -> pathname.isFile() && pathname.getName().startsWith("card_") && pathname.getName().endsWith(".json"));
+        if (cardFiles != null) {
+            for (File cardFile : cardFiles)
+                cards.add(mapper.readValue(Files.readAllBytes(cardFile.toPath()), CardImpl.class));
+        }
+        try {
+            project.initCardList(cards);
+        } catch (AlreadyInitialedException e) {
+            // should not happen, the lock is held
+            throw new IOException(e);
+        }
+        this.residency.loaded(project, System.nanoTime() - start);
+    }
+
+    /**
+     * Drops the cards of the projects not used recently, if they are over the budget.
+     * It must be called without holding the locks of the projects
+     */
+    private void evict() {
+        if (this.residency != null && this.batchChanges.get() == null)
+            this.residency.evict();
+    }
+
+    /**
+     * Appends a record to the journal,
+     * if an atomic batch is running on the thread it is appended at the end of the batch
+     *
+     * @param record of the change, the lock of its project must be held
+     *
+     * @throws IOException if there are errors in appending the record
+     */
+    private void log(JournalRecord record) throws IOException {
+        List<JournalRecord> records = this.batchRecords.get();
+        if (records != null)
+            records.add(record);
+        else
+            this.journal.append(record);
+    }
+
+    /**
+     * Applies a record of the journal at startup,
+     * the records that can't be applied are skipped
+     *
+     * @param record to apply
+     */
+    private void replay(JournalRecord record) {
+        try {
+            Project project = record.getProject() != null ? this.projects.get(record.getProject()) : null;
+            switch (record.getOp()) {
+                case JournalRecord.REGISTER_USER:
+                    User user = new User(record.getUser(), record.getHash(), record.getSalt());
+                    if (this.users.putIfAbsent(user.getUsername(), user) != null)
+                        throw new UsernameNotAvailableException();
+                    this.userStatus.put(user.getUsername(), UserStatus.OFFLINE);
+                    return;
+                case JournalRecord.CREATE_PROJECT:
+                    if (project != null)
+                        throw new ProjectAlreadyExistException();
+                    project = new Project(record.getProject(), record.getUser(), record.getWhen());
+                    this.projects.put(project.getName(), project);
+                    return;
+                default:
+                    break;
+            }
+
+            if (project == null)
+                throw new ProjectNotExistException();
+            switch (record.getOp()) {
+                case JournalRecord.ADD_MEMBER:
+                    project.addMember(record.getUser());
+                    break;
+                case JournalRecord.ADD_CARD:
+                    project.addCard(new CardImpl(record.getCard(), record.getDescription()));
+                    break;
+                case JournalRecord.MOVE_CARD:
+                    project.restoreMovement(record.getCard(),
+                            new Movement(record.getFrom(), record.getTo(), record.getWhen()));
+                    break;
+                case JournalRecord.CANCEL_PROJECT:
+                    this.projects.remove(project.getName());
+                    MulticastAddressManager.freeAddress(project.getChatAddress());
+                    break;
+                default:
+                    System.err.format("Journal record %d: unknown operation %s\n", record.getSeq(), record.getOp());
+            }
+        } catch (UsernameNotAvailableException | ProjectAlreadyExistException | ProjectNotExistException |
+                UserAlreadyMemberException | CardAlreadyExistsException | CardNotExistException |
+                OperationNotAllowedException e) {
+            System.err.format("Journal record %d (%s) skipped: %s\n",
+                    record.getSeq(), record.getOp(), e.getClass().getSimpleName());
+        } catch (NoSuchAddressException | NoSuchPortException e) {
+            System.err.println("There are no more multicast addresses...");
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the data for a snapshot of the journal, holding the lock of one project at a time
+     *
+     * @return users and projects, with the last record of each project contained
+     */
+    private JournalSnapshot takeSnapshot() {
+        List<User> userList = new ArrayList<>(this.users.values());
+        List<JournalSnapshot.ProjectState> projectStates = new ArrayList<>();
+        for (Project project : this.projects.values()) {
+            synchronized (project) {
+                // canceled in the meantime
+                if (this.projects.get(project.getName()) != project)
+                    continue;
+                Project backup = project.backup();
+                projectStates.add(new JournalSnapshot.ProjectState(
+                        this.journal.lastSeq(project.getName()), backup, backup.getAllCards()));
+            }
+        }
+        return new JournalSnapshot(userList, projectStates);
+    }
+
+    /**
+     * Loads the users and the projects from a snapshot of the journal
+     *
+     * @param snapshot loaded
+     *
+     * @throws IOException if the multicast addresses are not enough
+     */
+    private void loadSnapshot(JournalSnapshot snapshot) throws IOException {
+        for (User user : snapshot.getUsers()) {
+            this.users.put(user.getUsername(), user);
+            this.userStatus.put(user.getUsername(), UserStatus.OFFLINE);
+        }
+        List<Project> loaded = new ArrayList<>();
+        for (JournalSnapshot.ProjectState state : snapshot.getProjects()) {
+            Project project = state.getProject();
+            try {
+                project.initCardList(new ArrayList<>(state.getCards()));
+            } catch (AlreadyInitialedException e) {
+                System.err.println("Project seems to be already initialized...");
+                throw new IOException();
+            }
+            loaded.add(project);
+        }
+        this.assignAddresses(loaded);
+    }
+
+    /**
+     * Saves a project modified by a batch or by the operations marked for the write-behind,
+     * with the cards modified
+     *
+     * @param project modified
+     * @param cardNames names of the cards modified
+     *
+     * @throws IOException if there are errors in saving the project
+     */
+    private void storeBatchChanges(Project project, Set<String> cardNames) throws IOException {
+        synchronized (project) {
+            // canceled during the batch
+            if (this.projects.get(project.getName()) != project)
+                return;
+            for (String cardName : cardNames) {
+                try {
+                    this.storeCard(project.getCard(cardName), project.getName());
+                } catch (CardNotExistException e) {
+                    e.printStackTrace();
+                }
+            }
+            this.storeProject(project);
+        }
+    }
+
     /**
      * Saving the user to storage by serializing it
      *
@@ -384,6 +940,7 @@ public class Database implements UserRegistration, TCPOperations {
         File projectFolderFile = new File(projectFolder);
         if (!projectFolderFile.exists()) {
             projectFolderFile.mkdir();
+            this.commit.created(projectFolderFile.toPath());
         }
         byte[] byteProject = mapper.writeValueAsBytes(project);
 
@@ -397,18 +954,16 @@ public class Database implements UserRegistration, TCPOperations {
      * @param buffer used for loading
      *
      * @throws IOException if there are errors in the upload
+     *
+     * @return the user
      */
-    private void loadUser(File userFile, ByteBuffer buffer) throws IOException {
+    private User loadUser(File userFile, ByteBuffer buffer) throws IOException {
         // loading the file on the buffer
         this.readFile(userFile, buffer);
 
         // reading from user's buffer
-        User user = mapper.reader().forType(new TypeReference<User>() {})
+        return mapper.reader().forType(new TypeReference<User>() {})
                 .readValue(buffer.array());
-
-        // insert in the data structures
-        this.users.put(user.getUsername(), user);
-        this.userStatus.put(user.getUsername(), UserStatus.OFFLINE);
     }
 
     /**
@@ -416,36 +971,56 @@ public class Database implements UserRegistration, TCPOperations {
      *
      * @param cardFile file of the card
      * @param buffer used for loading
-     * @param projectCardList list of the cards of the project to process
      *
      * @throws IOException if there are errors in the upload
+     *
+     * @return the card
      */
-    private void loadCard(File cardFile, ByteBuffer buffer, List<CardImpl> projectCardList)
-            throws IOException {
+    private CardImpl loadCard(File cardFile, ByteBuffer buffer) throws IOException {
         // loading the file on the buffer
         this.readFile(cardFile, buffer);
 
         // reading from card's buffer
-        CardImpl card = mapper.reader().forType(new TypeReference<CardImpl>() {})
+        return mapper.reader().forType(new TypeReference<CardImpl>() {})
                 .readValue(buffer.array());
-        projectCardList.add(card);
-
     }
 
     /**
-     * Deserializing a project defined by the file projectInfo
+     * Deserializing a project defined by its directory, with its cards
      *
-     * @param projectInfo file of the project
+     * @param projectDir directory of the project, it contains the project file and the card files
+     * @param fileFilter selects the files of the directory to load
      * @param buffer used for loading
-     * @param projectCardList list of the cards of the project to process
      *
      * @throws IOException if there are errors in the upload
-     * @throws AlreadyInitialedException if there are fields of the project that have already been initialized
-     * @throws NoSuchPortException if there are no more ports available
-     * @throws NoSuchAddressException if there are no more addresses available
+     *
+     * @return the project without a chat address, null if the directory can't be read
      */
-    private void loadProject(File projectInfo, ByteBuffer buffer, List<CardImpl> projectCardList)
-            throws IOException, NoSuchAddressException, AlreadyInitialedException, NoSuchPortException {
+    private Project loadProject(File projectDir, FileFilter fileFilter, ByteBuffer buffer) throws IOException {
+        File[] projectFileList = projectDir.listFiles(fileFilter);
+        if (projectFileList == null)
+            return null;
+        if (projectFileList.length == 0) {
+            System.out.format("Project %s doesn't have config file (%s)\n",
+                    projectDir.getName(), PROJECT_CONFIG_FILENAME);
+        }
+        // list of project cards
+        List<CardImpl> projectCardList = new ArrayList<>();
+        File projectInfo = null;
+        // card processing
+        for (File cardFile : projectFileList) {
+            // if the file is the project file, I save it and I process it at the end
+            if (cardFile.getName().equals(PROJECT_CONFIG_FILENAME)) {
+                projectInfo = cardFile;
+                continue;
+            }
+
+            //loading the card into the project card list, later if they are loaded when used
+            if (this.residency == null)
+                projectCardList.add(this.loadCard(cardFile, buffer));
+        }
+
+        // now I can process the project
         // loading the file on the buffer
         this.readFile(projectInfo, buffer);
 
@@ -453,10 +1028,15 @@ public class Database implements UserRegistration, TCPOperations {
         Project project = mapper.reader().forType(new TypeReference<Project>() {})
                 .readValue(buffer.array());
 
-        project.initCardList(projectCardList);
-        project.initChatAddress(MulticastAddressManager.getAddress());
-
-        this.projects.put(project.getName(), project);
+        if (this.residency != null)
+            return project;
+        try {
+            project.initCardList(projectCardList);
+        } catch (AlreadyInitialedException e) {
+            System.err.println("Project seems to be already initialized...");
+            throw new IOException();
+        }
+        return project;
     }
 
     /**
@@ -496,6 +1076,7 @@ public class Database implements UserRegistration, TCPOperations {
         if (file == null)
             throw new IOException(); // impossibile non esista
 
+        boolean created = !file.exists();
         try (FileChannel outChannel = FileChannel.open(
                 Paths.get(file.getAbsolutePath()),
                 StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
@@ -505,6 +1086,7 @@ public class Database implements UserRegistration, TCPOperations {
             while (bb.hasRemaining())
                 outChannel.write(bb);
         }
+        this.commit.dirty(file.toPath(), created);
     }
 }
 
@@ -0,0 +1,140 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.BufferPool;
+import com.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Incremental decoder of the frames (length + message) received from a connection.
+ * The bytes can arrive split in any way between several reads:
+ * the decoder keeps the partial frame in a pooled buffer until it is complete.
+ * The bytes of the partial frames are accounted in the InboundBudget
+ */
+class FrameDecoder {
+    private static final LongAdder framesTooBig = Metrics.counter("inbound.frames_too_big");
+    private final ByteBuffer header;    // length of the frame being received
+    private int messageLength;          // length of the message being received, -1 while reading the length
+    private ByteBuffer frame;           // partial message (pooled), null if not started yet
+    private ByteBuffer completed;       // last message returned (pooled), released at the next call
+    private int frameReserved;          // bytes of the budget reserved for frame
+    private int completedReserved;      // bytes of the budget reserved for completed
+
+    FrameDecoder() {
+        this.header = ByteBuffer.allocate(Integer.BYTES);
+        this.messageLength = -1;
+        this.frame = null;
+        this.completed = null;
+        this.frameReserved = 0;
+        this.completedReserved = 0;
+    }
+
+    /**
+     * Consumes the bytes of the buffer until a frame is complete
+     *
+     * @param buffer ready for reading, the bytes not consumed remain in the buffer
+     *
+     * @return message of the completed frame, null if all the bytes have been consumed
+     *         without completing a frame. The message is valid until the next call
+     *         and until the buffer is modified
+     *
+     * @throws IOException if the length of the frame is not valid or bigger than ServerConfig.MAX_FRAME_SIZE
+     */
+    ByteBuffer decode(ByteBuffer buffer) throws IOException {
+        this.releaseCompleted();
+
+        while (buffer.hasRemaining()) {
+            if (messageLength == -1) {
+                // reading the length
+                while (header.hasRemaining() && buffer.hasRemaining())
+                    header.put(buffer.get());
+                if (header.hasRemaining())
+                    return null;
+
+                header.flip();
+                messageLength = header.getInt();
+                header.clear();
+                if (messageLength < 0)
+                    throw new IOException("Invalid frame length: " + messageLength);
+                if (messageLength > ServerConfig.MAX_FRAME_SIZE) {
+                    framesTooBig.increment();
+                    throw new IOException("Frame too big: " + messageLength);
+                }
+            }
+
+            if (frame == null) {
+                // the whole message has been received in the buffer, no need to copy it
+                if (buffer.remaining() >= messageLength) {
+                    ByteBuffer message = buffer.slice();
+                    message.limit(messageLength);
+                    buffer.position(buffer.position() + messageLength);
+                    messageLength = -1;
+                    return message;
+                }
+                frame = BufferPool.acquire(messageLength);
+                frame.limit(messageLength);
+                frameReserved = messageLength;
+                InboundBudget.reserve(frameReserved);
+            }
+
+            // reading the message
+            int toCopy = Math.min(frame.remaining(), buffer.remaining());
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + toCopy);
+            frame.put(part);
+            buffer.position(buffer.position() + toCopy);
+
+            if (!frame.hasRemaining()) {
+                frame.flip();
+                completed = frame;
+                completedReserved = frameReserved;
+                frame = null;
+                frameReserved = 0;
+                messageLength = -1;
+                return completed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a frame has been started and not completed yet
+     */
+    boolean hasPartialFrame() {
+        return messageLength != -1 || header.position() > 0;
+    }
+
+    /**
+     * @return bytes of the frame being received that haven't been received yet, 0 if its length is not known
+     */
+    int missing() {
+        if (messageLength == -1) return 0;
+        return frame != null ? frame.remaining() : messageLength;
+    }
+
+    /**
+     * Gives the buffers back to the pool, the decoder must not be used anymore
+     */
+    void release() {
+        this.releaseCompleted();
+        BufferPool.release(frame);
+        InboundBudget.release(frameReserved);
+        frame = null;
+        frameReserved = 0;
+    }
+
+    /**
+     * Gives the last message returned back to the pool and its bytes back to the budget
+     */
+    private void releaseCompleted() {
+        BufferPool.release(completed);
+        InboundBudget.release(completedReserved);
+        completed = null;
+        completedReserved = 0;
+    }
+}
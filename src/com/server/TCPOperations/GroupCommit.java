@@ -0,0 +1,222 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.Histogram;
+import com.utils.Metrics;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Makes the files written by the Database durable, following ServerConfig.SYNC_POLICY:
+ * "none"       the files are never forced, the operating system writes them when it wants
+ * "interval"   the files written are forced every ServerConfig.SYNC_INTERVAL ms by a background thread,
+ *              the operations don't wait
+ * "per-batch"  an operation waits until its files are forced: the first one waiting forces the files
+ *              written by all the operations so far, the others wait for it (group commit),
+ *              so many concurrent operations cost a single fsync
+ *
+ * The operations mark their files with dirty(), then they call await() after releasing their locks.
+ * The directories where files have been created are forced too, otherwise the new files could disappear
+ */
+class GroupCommit {
+    static final String NONE = "none";
+    static final String INTERVAL = "interval";
+    static final String PER_BATCH = "per-batch";
+    private static final Histogram batchSizes = Metrics.histogram("storage.sync_batch");   // operations per sync
+    private static final Histogram syncNanos = Metrics.histogram("storage.fsync");
+    private static final LongAdder syncs = Metrics.counter("storage.fsyncs");
+
+    private final String policy;
+    private final ThreadLocal<long[]> tickets;      // last ticket of the thread, 0 if it has nothing to wait for
+    private final ScheduledExecutorService timer;   // only for the interval policy
+    private Set<Path> pending;                      // files written and not forced yet
+    private Set<Path> pendingDirs;                  // directories with new files, not forced yet
+    private int operations;                         // operations that have written since the last sync
+    private long written;                           // ticket of the last write
+    private long synced;                            // writes up to this ticket are durable
+    private boolean syncing;                        // a thread is forcing the files
+
+    GroupCommit(String policy) {
+        if (!NONE.equals(policy) && !INTERVAL.equals(policy) && !PER_BATCH.equals(policy))
+            throw new IllegalArgumentException("Unknown sync policy: " + policy);
+        this.policy = policy;
+        this.tickets = ThreadLocal.withInitial(() -> new long[1]);
+        this.pending = new LinkedHashSet<>();
+        this.pendingDirs = new LinkedHashSet<>();
+        this.operations = 0;
+        this.written = 0;
+        this.synced = 0;
+        this.syncing = false;
+
+        if (INTERVAL.equals(policy)) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "group-commit");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.timer.scheduleWithFixedDelay(() -> {
+                try {
+                    this.sync(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, ServerConfig.SYNC_INTERVAL, ServerConfig.SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Marks a file written by the operation running on the thread
+     *
+     * @param file written, it will be forced
+     * @param created true if the file is new, its directory will be forced too
+     */
+    void dirty(Path file, boolean created) {
+        if (NONE.equals(policy)) return;
+        long[] ticket = tickets.get();
+        synchronized (this) {
+            pending.add(file);
+            if (created)
+                pendingDirs.add(file.toAbsolutePath().getParent());
+            // the first write of the operation since its last await()
+            if (ticket[0] == 0)
+                operations++;
+            ticket[0] = ++written;
+        }
+    }
+
+    /**
+     * Marks a new file or directory, its parent directory is forced by the next sync
+     * (before the response of an operation that writes a file afterwards)
+     *
+     * @param path created
+     */
+    void created(Path path) {
+        if (NONE.equals(policy)) return;
+        synchronized (this) {
+            pendingDirs.add(path.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Forces the entries of a directory (files created, renamed or deleted), whatever the policy
+     *
+     * @param directory to force
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Waits until the files written by the thread are durable, with the per-batch policy.
+     * It must be called without holding the locks of the Database, so that the other operations can join the batch
+     *
+     * @throws IOException if the files can't be forced, the changes could be lost
+     */
+    void await() throws IOException {
+        long[] ticket = tickets.get();
+        if (ticket[0] == 0) return;
+        long toWait = ticket[0];
+        ticket[0] = 0;
+        if (PER_BATCH.equals(policy))
+            this.sync(toWait);
+    }
+
+    /**
+     * Forces all the files written so far, called at shutdown
+     */
+    void close() throws IOException {
+        if (timer != null)
+            timer.shutdownNow();
+        if (!NONE.equals(policy))
+            this.sync(Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits until the writes up to ticket are durable, forcing the pending files if no one else is doing it
+     *
+     * @param ticket of the last write to wait for, Long.MAX_VALUE for all the writes so far
+     */
+    private void sync(long ticket) throws IOException {
+        Set<Path> toSync;
+        Set<Path> dirsToSync;
+        long target;
+        int syncedOperations;
+        synchronized (this) {
+            if (ticket == Long.MAX_VALUE)
+                ticket = written;
+            while (synced < ticket && syncing) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the sync", e);
+                }
+            }
+            if (synced >= ticket)
+                return;
+            // this thread forces the files of all the writes so far, the others wait for it
+            syncing = true;
+            toSync = pending;
+            pending = new LinkedHashSet<>();
+            dirsToSync = pendingDirs;
+            pendingDirs = new LinkedHashSet<>();
+            target = written;
+            syncedOperations = operations;
+            operations = 0;
+        }
+
+        boolean done = false;
+        try {
+            long start = System.nanoTime();
+            for (Path file : toSync) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                } catch (NoSuchFileException e) {
+                    // deleted in the meantime (canceled project, old journal segment)
+                }
+            }
+            for (Path directory : dirsToSync) {
+                try {
+                    forceDirectory(directory);
+                } catch (NoSuchFileException e) {
+                    // deleted in the meantime (canceled project)
+                }
+            }
+            syncNanos.record(System.nanoTime() - start);
+            batchSizes.record(syncedOperations);
+            syncs.increment();
+            done = true;
+        } finally {
+            synchronized (this) {
+                if (done) {
+                    synced = target;
+                } else {
+                    // the next sync tries again
+                    toSync.addAll(pending);
+                    pending = toSync;
+                    dirsToSync.addAll(pendingDirs);
+                    pendingDirs = dirsToSync;
+                    operations += syncedOperations;
+                }
+                syncing = false;
+                this.notifyAll();
+            }
+        }
+    }
+}
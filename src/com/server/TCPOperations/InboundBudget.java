@@ -0,0 +1,76 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.Metrics;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Bytes held by all the connections in partially received requests (ServerConfig.INBOUND_BUDGET).
+ * When the budget is exhausted the front ends stop reading new requests,
+ * the requests already started can be completed so that their memory is freed
+ */
+abstract class InboundBudget {
+    private static final long WAIT_TIMEOUT = 100;       // ms, max wait before checking the budget again
+    private static final AtomicLong used = new AtomicLong(0);
+    private static final Object available = new Object();  // notified when the usage goes under the budget
+    private static final LongAdder pauses = Metrics.counter("inbound.pauses");
+
+    static {
+        Metrics.gauge("inbound.bytes", used::get);
+    }
+
+    /**
+     * @param bytes held by a request being received, the budget can be exceeded
+     */
+    static void reserve(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    /**
+     * @param bytes reserved before, no longer held
+     */
+    static void release(long bytes) {
+        if (bytes == 0) return;
+        long current = used.addAndGet(-bytes);
+        if (current < ServerConfig.INBOUND_BUDGET && current + bytes >= ServerConfig.INBOUND_BUDGET) {
+            synchronized (available) {
+                available.notifyAll();
+            }
+        }
+    }
+
+    static boolean isExhausted() {
+        return used.get() >= ServerConfig.INBOUND_BUDGET;
+    }
+
+    /**
+     * Called when a connection stops reading because the budget is exhausted
+     */
+    static void paused() {
+        pauses.increment();
+    }
+
+    /**
+     * Blocks the calling thread until the usage goes under the budget
+     *
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    static void awaitAvailable() throws InterruptedIOException {
+        if (!isExhausted()) return;
+        paused();
+        synchronized (available) {
+            while (isExhausted()) {
+                try {
+                    available.wait(WAIT_TIMEOUT);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
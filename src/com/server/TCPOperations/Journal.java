@@ -0,0 +1,373 @@
+package com.server.TCPOperations;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.server.ServerConfig;
+import com.utils.Histogram;
+import com.utils.Metrics;
+import com.utils.MyObjectMapper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * @author Davide Chen
+ *
+ * Append-only log of the changes of the Database (ServerConfig.STORAGE = "journal").
+ * Each change is a record appended to the current segment file as [length][crc32][json],
+ * so adding or moving a card writes a few bytes whatever the size of the project.
+ * Every ServerConfig.SNAPSHOT_RECORDS records the whole data is written to a snapshot
+ * and the segments covered by it are deleted.
+ * At startup the snapshot is loaded and the records after it are replayed:
+ * a torn record (crash while appending) ends its segment.
+ *
+ * The records of a project are appended holding the lock of the project, so they are in the order of its changes
+ */
+class Journal {
+    private static final String SNAPSHOT_FILENAME = "snapshot.json";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;     // length and checksum of a record
+    private static final LongAdder records = Metrics.counter("journal.records");
+    private static final LongAdder bytes = Metrics.counter("journal.bytes");
+    private static final LongAdder replayed = Metrics.counter("journal.replayed");
+    private static final Histogram snapshotTimes = Metrics.histogram("journal.snapshot_ms");
+
+    private final Path folder;
+    private final ObjectMapper mapper;
+    private final Map<String, Long> lastSeqs;           // seq of the last record of each project
+    private final ExecutorService snapshots;            // writes the snapshots in background
+    private final Object snapshotLock;                  // one snapshot at a time, they share the temp file
+    private final GroupCommit commit;                   // forces the segments
+    private Supplier<JournalSnapshot> state;            // copies the data of the Database
+    private FileChannel segment;                        // current segment, records are appended to it
+    private Path segmentFile;
+    private long nextSeq;                               // seq of the next record
+    private long sinceSnapshot;                         // records appended since the last snapshot
+    private boolean snapshotRunning;
+
+    /**
+     * @param folder of the snapshot and of the segments, created if it doesn't exist
+     * @param commit forces the segments written
+     */
+    Journal(String folder, GroupCommit commit) throws IOException {
+        this.folder = Paths.get(folder);
+        Files.createDirectories(this.folder);
+        this.mapper = new MyObjectMapper();
+        this.mapper.disable(SerializationFeature.INDENT_OUTPUT);
+        this.lastSeqs = new ConcurrentHashMap<>();
+        this.commit = commit;
+        this.snapshotLock = new Object();
+        this.snapshots = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "journal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.segment = null;
+        this.segmentFile = null;
+        this.nextSeq = 1;
+        this.sinceSnapshot = 0;
+        this.snapshotRunning = false;
+    }
+
+    /**
+     * @return the last snapshot written, null if there is none
+     */
+    JournalSnapshot loadSnapshot() throws IOException {
+        Path file = folder.resolve(SNAPSHOT_FILENAME);
+        if (!Files.exists(file))
+            return null;
+        JournalSnapshot snapshot = mapper.readValue(file.toFile(), JournalSnapshot.class);
+        for (JournalSnapshot.ProjectState state : snapshot.getProjects())
+            lastSeqs.put(state.getProject().getName(), state.getLastSeq());
+        nextSeq = snapshot.getSeq() + 1;
+        return snapshot;
+    }
+
+    /**
+     * Replays the records after the snapshot, in the order they were appended.
+     * The records of a project already contained in the snapshot are skipped
+     *
+     * @param snapshot loaded, null if there is none
+     * @param apply applies a record to the Database
+     *
+     * @return number of records replayed
+     */
+    int replay(JournalSnapshot snapshot, Consumer<JournalRecord> apply) throws IOException {
+        long covered = snapshot == null ? 0 : snapshot.getSeq();
+        int count = 0;
+        for (Path file : this.segments()) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+            JournalRecord record;
+            while ((record = this.next(buffer, file)) != null) {
+                nextSeq = Math.max(nextSeq, record.getSeq() + 1);
+                if (record.getSeq() <= covered)
+                    continue;
+                String project = record.getProject();
+                if (project != null && record.getSeq() <= lastSeqs.getOrDefault(project, covered))
+                    continue;
+
+                apply.accept(record);
+                this.applied(record);
+                count++;
+            }
+        }
+        sinceSnapshot = count;
+        replayed.add(count);
+        return count;
+    }
+
+    /**
+     * Starts appending to a new segment, after the replay
+     *
+     * @param state copies the data of the Database for the snapshots, holding the locks of the projects
+     */
+    void start(Supplier<JournalSnapshot> state) throws IOException {
+        this.state = state;
+        synchronized (this) {
+            this.roll();
+        }
+    }
+
+    /**
+     * Appends a record, its seq is assigned
+     *
+     * @throws IOException if the record can't be written, it must be considered not saved
+     */
+    void append(JournalRecord record) throws IOException {
+        this.append(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends the records with a single write, in the order of the list
+     *
+     * @throws IOException if the records can't be written, they must be considered not saved
+     */
+    synchronized void append(List<JournalRecord> toAppend) throws IOException {
+        if (toAppend.isEmpty()) return;
+        List<byte[]> payloads = new ArrayList<>(toAppend.size());
+        int size = 0;
+        long seq = nextSeq;
+        for (JournalRecord record : toAppend) {
+            record.setSeq(seq++);
+            byte[] payload = mapper.writeValueAsBytes(record);
+            payloads.add(payload);
+            size += HEADER_BYTES + payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (byte[] payload : payloads) {
+            crc.reset();
+            crc.update(payload);
+            buffer.putInt(payload.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(payload);
+        }
+        buffer.flip();
+        long end = segment.position();
+        try {
+            while (buffer.hasRemaining())
+                segment.write(buffer);
+        } catch (IOException e) {
+            this.discardFrom(end);
+            throw e;
+        }
+        commit.dirty(segmentFile, false);
+
+        nextSeq = seq;
+        for (JournalRecord record : toAppend)
+            this.applied(record);
+        records.add(toAppend.size());
+        bytes.add(size);
+
+        sinceSnapshot += toAppend.size();
+        if (sinceSnapshot >= ServerConfig.SNAPSHOT_RECORDS && !snapshotRunning) {
+            snapshotRunning = true;
+            snapshots.execute(() -> {
+                try {
+                    this.snapshot();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (this) {
+                        snapshotRunning = false;
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return seq of the last record of the project, read holding the lock of the project
+     */
+    long lastSeq(String project) {
+        return lastSeqs.getOrDefault(project, 0L);
+    }
+
+    /**
+     * Writes the whole data to a new snapshot, then deletes the segments that it covers.
+     * The records can be appended in the meantime, the other snapshots wait
+     */
+    void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            this.writeSnapshot();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        long start = System.nanoTime();
+        long covered;
+        Path current;
+        synchronized (this) {
+            // the records appended so far are in the data copied below
+            covered = nextSeq - 1;
+            this.roll();
+            current = segmentFile;
+            sinceSnapshot = 0;
+        }
+
+        JournalSnapshot snapshot = state.get();
+        snapshot.setSeq(covered);
+        Path temp = folder.resolve(SNAPSHOT_FILENAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(mapper.writeValueAsBytes(snapshot));
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, folder.resolve(SNAPSHOT_FILENAME),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the new snapshot must survive a crash before the segments that it covers are deleted
+        GroupCommit.forceDirectory(folder);
+
+        for (Path file : this.segments()) {
+            if (file.getFileName().toString().compareTo(current.getFileName().toString()) < 0)
+                Files.deleteIfExists(file);
+        }
+        snapshotTimes.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Waits for the snapshot running in background, then writes a last snapshot and closes the journal,
+     * called at shutdown after the last change
+     */
+    void close() throws IOException {
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        this.snapshot();
+        synchronized (this) {
+            segment.close();
+        }
+    }
+
+    /**
+     * Tracks the last record of its project
+     */
+    private void applied(JournalRecord record) {
+        String project = record.getProject();
+        if (project == null) return;
+        if (JournalRecord.CANCEL_PROJECT.equals(record.getOp()))
+            lastSeqs.remove(project);
+        else
+            lastSeqs.put(project, record.getSeq());
+    }
+
+    /**
+     * Removes the part of a record written by a failed append: the replay stops at a torn record,
+     * the records appended after it would be lost.
+     * If the segment can't be truncated the following records go to a new segment
+     *
+     * @param end of the segment before the failed append
+     */
+    private void discardFrom(long end) {
+        try {
+            segment.truncate(end);
+            segment.position(end);
+        } catch (IOException e) {
+            try {
+                this.roll();
+            } catch (IOException rollError) {
+                // the segment stays closed, the following appends fail too
+                rollError.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment and opens a new one, starting from nextSeq
+     */
+    private void roll() throws IOException {
+        if (segment != null)
+            segment.close();
+        // a segment with the same name is empty or contains only torn records
+        segmentFile = this.segmentPath(nextSeq);
+        segment = FileChannel.open(segmentFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        commit.created(segmentFile);
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return folder.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return the segment files, in the order they were written
+     */
+    private List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream)
+                files.add(file);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * @return the next record of the segment, null at its end or at a torn record
+     */
+    private JournalRecord next(ByteBuffer buffer, Path file) {
+        if (buffer.remaining() < HEADER_BYTES)
+            return null;
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            System.err.format("Journal %s: torn record at %d\n", file.getFileName(), buffer.position() - HEADER_BYTES);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.position(), length);
+        if ((int) crc.getValue() != checksum) {
+            System.err.format("Journal %s: corrupted record at %d\n", file.getFileName(), buffer.position() - HEADER_BYTES);
+            return null;
+        }
+        try {
+            JournalRecord record = mapper.readValue(buffer.array(), buffer.position(), length, JournalRecord.class);
+            buffer.position(buffer.position() + length);
+            return record;
+        } catch (IOException e) {
+            System.err.format("Journal %s: invalid record at %d\n", file.getFileName(), buffer.position() - HEADER_BYTES);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.server.TCPOperations;
+
+import com.data.CardImpl;
+import com.data.CardStatus;
+import com.data.Movement;
+import com.data.Project;
+import com.data.User;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * @author Davide Chen
+ *
+ * Change of the Database appended to the Journal: only the fields of its operation are set,
+ * so a record has the same size whatever the size of the project
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class JournalRecord {
+    static final String REGISTER_USER = "register_user";
+    static final String CREATE_PROJECT = "create_project";
+    static final String ADD_MEMBER = "add_member";
+    static final String ADD_CARD = "add_card";
+    static final String MOVE_CARD = "move_card";
+    static final String CANCEL_PROJECT = "cancel_project";
+
+    private long seq;                   // position in the journal, assigned when appended
+    private String op;
+    private String project;
+    private String user;                // user registered, creator of the project or member added
+    private String hash;                // password of the user registered
+    private String salt;
+    private String card;
+    private String description;
+    private CardStatus from;            // movement of the card
+    private CardStatus to;
+    private LocalDateTime when;         // of the movement or of the creation of the project
+
+    @JsonCreator
+    private JournalRecord() {}
+
+    private JournalRecord(String op, String project) {
+        this.op = op;
+        this.project = project;
+    }
+
+    static JournalRecord registerUser(User user) {
+        JournalRecord record = new JournalRecord(REGISTER_USER, null);
+        record.user = user.getUsername();
+        record.hash = user.getHashPassword();
+        record.salt = user.getSalt();
+        return record;
+    }
+
+    static JournalRecord createProject(Project project) {
+        JournalRecord record = new JournalRecord(CREATE_PROJECT, project.getName());
+        record.user = project.getMembers().get(0);
+        record.when = project.getCreationDateTime();
+        return record;
+    }
+
+    static JournalRecord addMember(String project, String username) {
+        JournalRecord record = new JournalRecord(ADD_MEMBER, project);
+        record.user = username;
+        return record;
+    }
+
+    static JournalRecord addCard(String project, CardImpl card) {
+        JournalRecord record = new JournalRecord(ADD_CARD, project);
+        record.card = card.getName();
+        record.description = card.getDescription();
+        return record;
+    }
+
+    /**
+     * @param card moved, its last movement is recorded
+     */
+    static JournalRecord moveCard(String project, CardImpl card) {
+        JournalRecord record = new JournalRecord(MOVE_CARD, project);
+        List<Movement> movements = card.getMovements();
+        Movement movement = movements.get(movements.size() - 1);
+        record.card = card.getName();
+        record.from = movement.getFrom();
+        record.to = movement.getTo();
+        record.when = movement.getWhen();
+        return record;
+    }
+
+    static JournalRecord cancelProject(String project) {
+        return new JournalRecord(CANCEL_PROJECT, project);
+    }
+
+    public long getSeq() {
+        return this.seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public String getOp() {
+        return this.op;
+    }
+
+    public String getProject() {
+        return this.project;
+    }
+
+    public String getUser() {
+        return this.user;
+    }
+
+    public String getHash() {
+        return this.hash;
+    }
+
+    public String getSalt() {
+        return this.salt;
+    }
+
+    public String getCard() {
+        return this.card;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public CardStatus getFrom() {
+        return this.from;
+    }
+
+    public CardStatus getTo() {
+        return this.to;
+    }
+
+    public LocalDateTime getWhen() {
+        return this.when;
+    }
+}
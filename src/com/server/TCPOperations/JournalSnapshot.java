@@ -0,0 +1,75 @@
+package com.server.TCPOperations;
+
+import com.data.CardImpl;
+import com.data.Project;
+import com.data.User;
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.util.List;
+
+/**
+ * @author Davide Chen
+ *
+ * Whole data of the Database written by the Journal: it contains the effects of all the records
+ * up to seq, and of some of the following ones (see ProjectState.lastSeq)
+ */
+class JournalSnapshot {
+    private long seq;                       // last record whose effects are surely contained
+    private List<User> users;
+    private List<ProjectState> projects;
+
+    @JsonCreator
+    private JournalSnapshot() {}
+
+    JournalSnapshot(List<User> users, List<ProjectState> projects) {
+        this.seq = 0;
+        this.users = users;
+        this.projects = projects;
+    }
+
+    public long getSeq() {
+        return this.seq;
+    }
+
+    void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public List<User> getUsers() {
+        return this.users;
+    }
+
+    public List<ProjectState> getProjects() {
+        return this.projects;
+    }
+
+    /**
+     * Project with its cards, copied holding its lock
+     */
+    static class ProjectState {
+        private long lastSeq;               // last record of the project contained, the following ones are not
+        private Project project;
+        private List<CardImpl> cards;
+
+        @JsonCreator
+        private ProjectState() {}
+
+        ProjectState(long lastSeq, Project project, List<CardImpl> cards) {
+            this.lastSeq = lastSeq;
+            this.project = project;
+            this.cards = cards;
+        }
+
+        public long getLastSeq() {
+            return this.lastSeq;
+        }
+
+        public Project getProject() {
+            return this.project;
+        }
+
+        public List<CardImpl> getCards() {
+            return this.cards;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.server.TCPOperations;
+
+import com.CommunicationProtocol;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.server.ServerConfig;
+import com.utils.Metrics;
+import com.utils.ResponseMessage;
+import com.utils.TokenBucket;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Limits the requests of each user with a token bucket for each class of commands:
+ * the reads of the data and the writes, that are saved on disk.
+ * A request over the limit is not executed, its response is THROTTLED with the ms to wait as body.
+ * The commands without a class (login, logout, batch...) are not limited, the requests of a batch are
+ */
+class RateLimitInterceptor implements CommandInterceptor {
+    private static final int READ = 0;
+    private static final int WRITE = 1;
+    private static final String[] CLASS_NAMES = {"read", "write"};
+    private static final Map<String, Integer> CLASSES = new HashMap<>();
+    static {
+        CLASSES.put(CommunicationProtocol.LIST_PROJECTS_CMD, READ);
+        CLASSES.put(CommunicationProtocol.SHOW_MEMBERS_CMD, READ);
+        CLASSES.put(CommunicationProtocol.SHOW_CARDS_CMD, READ);
+        CLASSES.put(CommunicationProtocol.SHOW_CARD_CMD, READ);
+        CLASSES.put(CommunicationProtocol.CARD_HISTORY_CMD, READ);
+        CLASSES.put(CommunicationProtocol.CREATE_PROJECT_CMD, WRITE);
+        CLASSES.put(CommunicationProtocol.ADD_MEMBER_CMD, WRITE);
+        CLASSES.put(CommunicationProtocol.ADD_CARD_CMD, WRITE);
+        CLASSES.put(CommunicationProtocol.MOVE_CARD_CMD, WRITE);
+        CLASSES.put(CommunicationProtocol.CANCEL_PROJECT_CMD, WRITE);
+    }
+
+    private final double[] rates;                           // tokens per second of each class, 0 = no limit
+    private final int[] bursts;                             // capacity of the buckets of each class
+    private final Map<String, TokenBucket[]> buckets;       // buckets of each user, by class
+    private final LongAdder[] throttled;                    // requests rejected, by class
+
+    RateLimitInterceptor() {
+        this.rates = new double[]{ServerConfig.READ_RATE, ServerConfig.WRITE_RATE};
+        this.bursts = new int[]{ServerConfig.READ_BURST, ServerConfig.WRITE_BURST};
+        this.buckets = new ConcurrentHashMap<>();
+        this.throttled = new LongAdder[CLASS_NAMES.length];
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            this.throttled[i] = Metrics.counter("ratelimit." + CLASS_NAMES[i] + ".throttled");
+            int commandClass = i;
+            Metrics.gauge("ratelimit." + CLASS_NAMES[i] + ".throttled_users", () -> this.throttledUsers(commandClass));
+        }
+    }
+
+    @Override
+    public ResponseMessage intercept(CommandContext context, CommandHandler next) throws Exception {
+        Integer commandClass = CLASSES.get(context.getCommand());
+        String username = context.getUsername();
+        // the commands of the users not logged in are rejected anyway
+        if (commandClass == null || username == null || rates[commandClass] <= 0)
+            return next.handle(context);
+
+        // the buckets are shared by all the connections of the user
+        TokenBucket bucket = buckets.computeIfAbsent(username, k -> this.newBuckets())[commandClass];
+        long wait = bucket.tryAcquire();
+        if (wait == 0)
+            return next.handle(context);
+
+        throttled[commandClass].increment();
+        // retry-after hint, at least 1 ms
+        long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+        return new ResponseMessage(CommunicationProtocol.THROTTLED, LongNode.valueOf(retryAfter), null);
+    }
+
+    /**
+     * @return the buckets of a user, null for the classes without limit
+     */
+    private TokenBucket[] newBuckets() {
+        TokenBucket[] userBuckets = new TokenBucket[CLASS_NAMES.length];
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            if (rates[i] > 0)
+                userBuckets[i] = new TokenBucket(rates[i], Math.max(1, bursts[i]));
+        }
+        return userBuckets;
+    }
+
+    /**
+     * @return number of users that have used all the tokens of the class
+     */
+    private long throttledUsers(int commandClass) {
+        long count = 0;
+        for (TokenBucket[] userBuckets : buckets.values()) {
+            TokenBucket bucket = userBuckets[commandClass];
+            if (bucket != null && bucket.isEmpty())
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,790 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Selector loop that serves a set of client connections.
+ * The reactor that owns the server channel accepts the new connections too:
+ * it serves them itself or it spreads them over the other reactors (round robin)
+ *
+ * The requests are executed by the executor, in the order they were received from each connection.
+ * The responses are handed back to the reactor, that is the only thread touching its keys
+ *
+ * The idle and read timeouts of the connections are tracked by a timing wheel advanced by the select loop,
+ * an expired connection is closed and its user logged out as if the connection had been lost.
+ * When the InboundBudget is exhausted the connections stop reading new requests (OP_READ cleared)
+ * until the partial requests already started are completed.
+ *
+ * The responses waiting to be written are bounded by ServerConfig.MAX_OUTBOUND_BYTES for each connection
+ * (ServerConfig.OUTBOUND_POLICY) and a connection that doesn't accept any byte for
+ * ServerConfig.WRITE_TIMEOUT is closed, so slow clients can't hold the memory of the reactor
+ *
+ * With ServerConfig.SELECT_SPINS > 0 the reactor busy-polls: it spins on selectNow() and blocks in the selector
+ * only after that many empty rounds, trading a CPU for the latency of the wakeups.
+ *
+ * At shutdown the reactor is drained: it stops accepting connections and reading requests,
+ * each connection is closed once its requests in progress are executed and their responses written,
+ * the ones still busy at the deadline are closed anyway
+ */
+class Reactor implements Runnable {
+    private static final int MAX_GATHER = 64;               // max responses written with a single write
+    private static final int WHEEL_SLOTS = 512;             // slots of the timing wheel
+    private static final long DRAIN_LINGER = 200;           // ms without input before closing a drained connection
+    private static final LongAdder bytesRead = Metrics.counter("net.bytes_read");
+    private static final LongAdder bytesWritten = Metrics.counter("net.bytes_written");
+    private static final LongAdder expiredIdle = Metrics.counter("connections.expired_idle");
+    private static final LongAdder expiredRead = Metrics.counter("connections.expired_read");
+    private static final LongAdder expiredWrite = Metrics.counter("connections.expired_write");
+    private static final LongAdder outboundDisconnects = Metrics.counter("outbound.disconnects");
+    private static final LongAdder outboundPauses = Metrics.counter("outbound.pauses");
+    private static final LongAdder abandoned = Metrics.counter("shutdown.abandoned");
+    private static final LongAdder parks = Metrics.counter("reactor.parks");
+    private static final Histogram wakeupLatency = Metrics.histogram("reactor.wakeup_latency");
+    private static final AtomicLong outboundBytes = new AtomicLong(0);     // of all the reactors
+
+    static {
+        Metrics.gauge("outbound.bytes", outboundBytes::get);
+    }
+
+    private final Selector selector;
+    private ByteBuffer readBuffer;                          // shared by the connections of the reactor (pooled),
+                                                            // as big as the largest read size in use
+    private final ByteBuffer[] gather;                      // responses of the gathering write in progress
+    private final RequestDispatcher dispatcher;             // executes the requests
+    private final Executor executor;                        // where the requests are executed
+    private final ServerSocketChannel serverChannel;        // null if the reactor doesn't accept connections
+    private final Reactor[] reactors;                       // reactors that serve the accepted connections
+    private final Queue<Runnable> tasks;                    // tasks that other threads hand over to the reactor
+    private final AtomicLong firstQueued;                   // ns when the oldest task was queued, 0 = none
+    private final TimingWheel<SelectionKey> timeouts;       // next check of the timeouts of each connection
+    private final List<SelectionKey> paused;                // connections not reading for the InboundBudget
+    private int nextReactor;                                // round robin index
+    private Thread thread;                                  // thread running the reactor
+    private volatile boolean terminated;
+    private volatile boolean parked;                        // blocked in the selector, it must be woken up
+    private volatile boolean draining;                      // shutting down, see drain()
+    private volatile long drainDeadline;                    // System.nanoTime() when the draining ends anyway
+    private boolean drainStarted;                           // reading and accepting already stopped
+
+    /**
+     * Reactor that only serves the connections handed over by the acceptor
+     */
+    Reactor(RequestDispatcher dispatcher, Executor executor) throws IOException {
+        this(dispatcher, executor, null, new Reactor[0]);
+    }
+
+    /**
+     * Reactor that accepts the connections of the server channel
+     *
+     * @param executor where the requests are executed, null = by the reactor
+     * @param serverChannel to accept connections from
+     * @param reactors to which the accepted connections are handed over,
+     *                 if empty the connections are served by this reactor
+     */
+    Reactor(RequestDispatcher dispatcher, Executor executor, ServerSocketChannel serverChannel, Reactor[] reactors)
+            throws IOException {
+        this.dispatcher = dispatcher;
+        // without workers the requests are executed by the reactor, the asynchronous ones are completed on it too
+        this.executor = executor != null ? executor : this::execute;
+        this.serverChannel = serverChannel;
+        this.reactors = reactors;
+
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.firstQueued = new AtomicLong(0);
+        this.readBuffer = BufferPool.acquire(ServerConfig.MIN_READ_SIZE);
+        this.gather = new ByteBuffer[MAX_GATHER];
+        this.timeouts = new TimingWheel<>(WHEEL_SLOTS, ServerConfig.TIMEOUT_TICK, now());
+        this.paused = new ArrayList<>();
+        this.nextReactor = 0;
+        this.terminated = false;
+        this.parked = false;
+        this.draining = false;
+        this.drainStarted = false;
+
+        this.selector = Selector.open();
+        if (serverChannel != null)
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT); // register server to accept connections
+    }
+
+    /**
+     * Hands a new connection over to this reactor, it can be called by any thread
+     *
+     * @param client connection to serve (non-blocking)
+     */
+    void register(SocketChannel client) {
+        this.execute(() -> this.registerClient(client));
+    }
+
+    /**
+     * Runs a task on the reactor thread
+     *
+     * @param task to run, it must not throw exceptions
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == this.thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            firstQueued.compareAndSet(0, System.nanoTime());
+            // a spinning reactor sees the task without the wakeup (a syscall)
+            if (parked)
+                selector.wakeup();
+        }
+    }
+
+    void shutdown() {
+        this.terminated = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Stops accepting connections and reading requests: the reactor terminates when all the requests
+     * in progress have been executed and their responses written, or at the deadline.
+     * It can be called by any thread
+     *
+     * @param deadline System.nanoTime() when the connections still busy are closed anyway
+     */
+    void drain(long deadline) {
+        this.drainDeadline = deadline;
+        this.draining = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        this.thread = Thread.currentThread();
+        while (!terminated) {
+            try {
+                this.select();
+                this.runTasks();
+                timeouts.advance(now(), this::checkTimeouts);
+                if (draining) {
+                    this.closeDrained();
+                    if (terminated) break;
+                } else if (!paused.isEmpty() && !InboundBudget.isExhausted()) {
+                    this.resumeReading();
+                }
+
+                Set<SelectionKey> readyKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = readyKeys.iterator();
+
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    // the key could have been canceled by a task of the reactor
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) { // server ready to accept connection
+                        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+                        try {
+                            SocketChannel client = server.accept(); // non-blocking
+                            if (client == null) continue;
+                            if (!ConnectionLimit.tryAcquire()) {
+                                ConnectionLimit.reject(client.socket());
+                                continue;
+                            }
+
+                            client.configureBlocking(false); // non-blocking client socket
+
+                            if (reactors.length == 0) {
+                                this.registerClient(client);
+                            } else {
+                                reactors[nextReactor].register(client);
+                                nextReactor = (nextReactor + 1) % reactors.length;
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            server.close();
+                            return;
+                        }
+                    } else if (key.isReadable()) {
+                        // client wrote on channel, I'm ready to read it
+                        this.read(key);
+                    } else if (key.isWritable()) {
+                        // client waiting for writing to channel
+                        this.write(key);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // the connections still open are closed, their buffers go back to the pool
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null)
+                this.close(key);
+        }
+        BufferPool.release(readBuffer);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for ready keys or tasks: spinning on selectNow() for ServerConfig.SELECT_SPINS empty rounds,
+     * then blocking in the selector
+     */
+    private void select() throws IOException {
+        for (int i = 0; i < ServerConfig.SELECT_SPINS; i++) {
+            if (selector.selectNow() > 0 || !tasks.isEmpty())
+                return;
+            Thread.onSpinWait();
+        }
+        if (ServerConfig.SELECT_SPINS > 0)
+            parks.increment();
+
+        // the tasks queued after the flag is set wake the selector up
+        parked = true;
+        try {
+            if (tasks.isEmpty())
+                selector.select(this.selectTimeout());
+            else
+                selector.selectNow();
+        } finally {
+            parked = false;
+        }
+    }
+
+    /**
+     * @return ms to wait for the selector, the resolution of the timeouts or the rest of the drain
+     */
+    private long selectTimeout() {
+        long timeout = timeouts.getTickMillis();
+        if (draining) {
+            timeout = Math.min(Math.min(timeout, DRAIN_LINGER),
+                    TimeUnit.NANOSECONDS.toMillis(drainDeadline - System.nanoTime()));
+        }
+        return Math.max(1, timeout);
+    }
+
+    /**
+     * Called at every loop while draining: finishes the connections without requests in progress
+     * or responses to write, and terminates the reactor when none is left or at the deadline
+     */
+    private void closeDrained() throws IOException {
+        if (!drainStarted) {
+            drainStarted = true;
+            if (serverChannel != null)
+                serverChannel.close();
+            // the requests not read yet are not executed
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() != null)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        long now = now();
+        boolean expired = System.nanoTime() - drainDeadline >= 0;
+        List<SelectionKey> idle = new ArrayList<>();
+        int busy = 0;
+        int finishing = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || key.attachment() == null) continue;
+            Attachment attachment = (Attachment) key.attachment();
+            if (attachment.isFinishing()) {
+                // the client has stopped sending
+                if (now - attachment.getLastActivity() >= DRAIN_LINGER)
+                    this.close(key);
+                else
+                    finishing++;
+            } else if (attachment.hasPendingRequests() || !attachment.getResponses().isEmpty()) {
+                busy++;
+            } else {
+                idle.add(key);
+            }
+        }
+        // a request completed after runTasks() has its response in the tasks:
+        // the connections are finished only when it has been enqueued
+        if (tasks.isEmpty() && !expired) {
+            for (SelectionKey key : idle)
+                this.finish(key);
+            finishing += idle.size();
+            idle.clear();
+        }
+
+        if (expired) {
+            abandoned.add(busy);
+            this.terminated = true;
+        } else if (busy == 0 && finishing == 0 && idle.isEmpty()) {
+            this.terminated = true;
+        }
+    }
+
+    /**
+     * Sends the end of the stream to a drained connection, after its last response.
+     * The connection is closed when the client closes it too, or after DRAIN_LINGER ms without receiving anything:
+     * closing a socket with unread bytes would reset the connection and the client could lose the last responses
+     *
+     * @param key of the client
+     */
+    private void finish(SelectionKey key) {
+        Attachment attachment = (Attachment) key.attachment();
+        try {
+            ((SocketChannel) key.channel()).shutdownOutput();
+        } catch (IOException e) {
+            this.close(key);
+            return;
+        }
+        attachment.setFinishing();
+        attachment.setLastActivity(now());
+        // the requests still arriving are discarded by read()
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs the tasks handed over by the other threads
+     */
+    private void runTasks() {
+        long queued = firstQueued.getAndSet(0);
+        if (queued != 0)
+            wakeupLatency.record(System.nanoTime() - queued);
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Registers a new connection to the selector
+     *
+     * @param client connection to serve
+     */
+    private void registerClient(SocketChannel client) {
+        try {
+            // half-dead connections are detected by the operating system too
+            client.socket().setKeepAlive(true);
+            // get ready for reading from client
+            Attachment attachment = new Attachment();
+            SelectionKey key = client.register(selector, SelectionKey.OP_READ, attachment);
+            attachment.setLastActivity(now());
+            this.scheduleTimeouts(key, now());
+        } catch (IOException e) {
+            e.printStackTrace();
+            ConnectionLimit.release();
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Reads the bytes available from the client and hands the completed requests over to the executor.
+     * A partial request remains in the attachment until the next OP_READ
+     *
+     * @param key of the client ready for reading
+     */
+    private void read(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        Attachment attachment = (Attachment) key.attachment();
+        FrameDecoder decoder = attachment.getDecoder();
+        ReadSizer sizer = attachment.getReadSizer();
+        int size = sizer.next();
+        if (readBuffer.capacity() < size) {
+            BufferPool.release(readBuffer);
+            readBuffer = BufferPool.acquire(size);
+        }
+        ByteBuffer buffer = this.readBuffer;
+        buffer.clear();
+        buffer.limit(size);
+        if (attachment.isFinishing()) {
+            this.discard(key);
+            return;
+        }
+
+        // the partial requests can be completed, to free their memory
+        if (InboundBudget.isExhausted() && !decoder.hasPartialFrame()) {
+            this.pauseReading(key);
+            return;
+        }
+
+        try {
+            // a single read, without waiting for the rest of the message
+            int read = client.read(buffer);
+            if (read == -1) throw new EOFException();
+            bytesRead.add(read);
+            long now = now();
+            attachment.setLastActivity(now);
+            buffer.flip();
+
+            if (!attachment.isNegotiated() && buffer.hasRemaining())
+                this.negotiate(key, buffer);
+
+            ByteBuffer byteRequest;
+            while ((byteRequest = decoder.decode(buffer)) != null) {
+                // get the request message
+                RequestMessage requestMessage = attachment.getCodec().decodeRequest(byteRequest);
+
+                attachment.submitAsync(() -> this.process(key, requestMessage), executor);
+            }
+            attachment.updatePartial(decoder.hasPartialFrame(), now);
+            sizer.update(read, decoder.missing());
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            // when the client abruptly breaks the connection with the server
+            // a SocketException is caught, an invalid request closes the connection too
+            // (whatever the decoder throws, the other connections of the reactor go on)
+            this.disconnect(key);
+        }
+    }
+
+    /**
+     * Reads and discards the bytes received from a finished connection, closing it at the end of the stream
+     *
+     * @param key of the client
+     */
+    private void discard(SelectionKey key) {
+        Attachment attachment = (Attachment) key.attachment();
+        try {
+            int read = ((SocketChannel) key.channel()).read(readBuffer);
+            if (read == -1) {
+                this.close(key);
+                return;
+            }
+            attachment.setLastActivity(now());
+        } catch (IOException e) {
+            this.close(key);
+        }
+    }
+
+    /**
+     * Stops reading from a connection until the InboundBudget is available again
+     *
+     * @param key of the client
+     */
+    private void pauseReading(SelectionKey key) {
+        ((Attachment) key.attachment()).setBudgetPaused(true);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        paused.add(key);
+        InboundBudget.paused();
+    }
+
+    /**
+     * Starts reading again from the paused connections
+     */
+    private void resumeReading() {
+        for (SelectionKey key : paused) {
+            if (!key.isValid()) continue;
+            Attachment attachment = (Attachment) key.attachment();
+            attachment.setBudgetPaused(false);
+            if (this.canRead(attachment))
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        paused.clear();
+    }
+
+    /**
+     * Examines the first byte received from the connection: a handshake is consumed and answered
+     *
+     * @param key of the client
+     * @param buffer with the first bytes of the connection
+     */
+    private void negotiate(SelectionKey key, ByteBuffer buffer) {
+        Attachment attachment = (Attachment) key.attachment();
+        int reply = attachment.negotiate(buffer.get(buffer.position()) & 0xFF);
+        if (reply == -1) return;
+        buffer.get();
+
+        // the reply precedes any response
+        ByteBuffer replyBuffer = BufferPool.acquire(1);
+        replyBuffer.put((byte) reply).flip();
+        this.enqueue(key, replyBuffer);
+    }
+
+    /**
+     * Executes a request and hands the response back to the reactor.
+     * It runs on the executor
+     *
+     * @param key of the client that sent the request
+     * @param requestMessage request to execute
+     *
+     * @return completed when the response has been handed to the reactor, it never completes exceptionally
+     */
+    private CompletableFuture<Void> process(SelectionKey key, RequestMessage requestMessage) {
+        Attachment attachment = (Attachment) key.attachment();
+        try {
+            return dispatcher.dispatch(requestMessage, attachment).handle((response, error) -> {
+                this.respond(key, requestMessage, response, error);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            // thrown before the future exists, the connection is disconnected like for any other error
+            this.respond(key, requestMessage, null, e);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Serializes the response of a request and hands it to the reactor.
+     * It runs on the thread that completed the request
+     *
+     * @param error thrown by the request, null if it has been completed
+     */
+    private void respond(SelectionKey key, RequestMessage requestMessage, ResponseMessage response, Throwable error) {
+        Attachment attachment = (Attachment) key.attachment();
+
+        ByteBuffer buffer = null;
+        if (error == null) {
+            // the client asked to close the connection
+            if (response == null) {
+                this.execute(() -> this.closeAfterWriting(key));
+                return;
+            }
+            response.setId(requestMessage.getId());
+
+            // serialize it directly in the buffer, after its length
+            FrameOutputStream frame = new FrameOutputStream();
+            try {
+                attachment.getCodec().encodeResponse(response, frame);
+                buffer = attachment.compress(frame.toFrame());
+            } catch (IOException | RuntimeException e) {
+                frame.release();
+                error = e;
+            }
+        }
+        if (error != null) {
+            // the request can't be completed, the connection is closed
+            error.printStackTrace();
+            this.execute(() -> this.disconnect(key));
+            return;
+        }
+
+        ByteBuffer reply = buffer;
+        this.execute(() -> {
+            if (!key.isValid()) {
+                BufferPool.release(reply);
+                return;
+            }
+            // save the response in the attachment and get ready for writing
+            this.enqueue(key, reply);
+        });
+    }
+
+    /**
+     * Queues a response of the connection, applying ServerConfig.OUTBOUND_POLICY
+     * if too many bytes are waiting to be written
+     *
+     * @param key of the client
+     * @param buffer ready for writing
+     */
+    private void enqueue(SelectionKey key, ByteBuffer buffer) {
+        Attachment attachment = (Attachment) key.attachment();
+        if (attachment.getResponses().isEmpty())
+            attachment.setWriteSince(now());
+        attachment.getResponses().add(buffer);
+        attachment.addOutboundBytes(buffer.remaining());
+        outboundBytes.addAndGet(buffer.remaining());
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+
+        if (attachment.getOutboundBytes() <= ServerConfig.MAX_OUTBOUND_BYTES || attachment.isOutboundPaused())
+            return;
+        if (ServerConfig.OUTBOUND_POLICY.equals("disconnect")) {
+            outboundDisconnects.increment();
+            this.disconnect(key);
+        } else {
+            // no more requests until the client has read half of the responses
+            attachment.setOutboundPaused(true);
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            outboundPauses.increment();
+        }
+    }
+
+    /**
+     * Writes the pending responses to the client,
+     * the responses of pipelined requests are written together with a gathering write
+     *
+     * @param key of the client ready for writing
+     */
+    private void write(SelectionKey key) {
+        SocketChannel client = (SocketChannel) key.channel();
+        Attachment attachment = (Attachment) key.attachment();
+
+        Queue<ByteBuffer> responses = attachment.getResponses();
+        try {
+            while (!responses.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buffer : responses) {
+                    if (count == MAX_GATHER) break;
+                    gather[count++] = buffer;
+                }
+                long written = client.write(gather, 0, count);
+                bytesWritten.add(written);
+                attachment.addOutboundBytes(-written);
+                outboundBytes.addAndGet(-written);
+                if (written > 0) {
+                    attachment.setLastActivity(now());
+                    attachment.setWriteSince(now());
+                }
+                if (attachment.isOutboundPaused() &&
+                        attachment.getOutboundBytes() <= ServerConfig.MAX_OUTBOUND_BYTES / 2) {
+                    attachment.setOutboundPaused(false);
+                    if (this.canRead(attachment))
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                boolean socketFull = gather[count - 1].hasRemaining();
+                Arrays.fill(gather, 0, count, null);
+
+                // the responses completely written go back to the pool
+                while (!responses.isEmpty() && !responses.peek().hasRemaining())
+                    BufferPool.release(responses.remove());
+                // the socket buffer is full, the rest is written at the next OP_WRITE
+                if (socketFull)
+                    return;
+            }
+        } catch (IOException e) {
+            this.disconnect(key);
+            return;
+        }
+
+        attachment.setWriteSince(-1);
+        // while draining, a connection is finished when its last response has been written
+        // (a response still in the tasks has its request completed already)
+        if (attachment.isClosing()) {
+            this.close(key);
+            return;
+        }
+        if (drainStarted && !attachment.hasPendingRequests() && tasks.isEmpty()) {
+            this.finish(key);
+            return;
+        }
+
+        // get ready for next reading from client
+        key.interestOps(this.canRead(attachment) ? SelectionKey.OP_READ : 0);
+    }
+
+    /**
+     * @return true if the requests of the connection can be read
+     */
+    private boolean canRead(Attachment attachment) {
+        return !drainStarted && !attachment.isReadPaused();
+    }
+
+    /**
+     * Closes the connection if a timeout has expired, otherwise schedules the next check.
+     * Called by the timing wheel
+     *
+     * @param key of the client
+     */
+    private void checkTimeouts(SelectionKey key) {
+        if (!key.isValid()) return;
+        Attachment attachment = (Attachment) key.attachment();
+        long now = now();
+
+        long partialSince = attachment.getPartialSince();
+        if (ServerConfig.READ_TIMEOUT > 0 && partialSince != -1 && now - partialSince >= ServerConfig.READ_TIMEOUT) {
+            expiredRead.increment();
+            this.disconnect(key);
+        } else if (ServerConfig.WRITE_TIMEOUT > 0 && attachment.getWriteSince() != -1 &&
+                now - attachment.getWriteSince() >= ServerConfig.WRITE_TIMEOUT) {
+            expiredWrite.increment();
+            this.disconnect(key);
+        } else if (ServerConfig.IDLE_TIMEOUT > 0 && now - attachment.getLastActivity() >= ServerConfig.IDLE_TIMEOUT) {
+            expiredIdle.increment();
+            this.disconnect(key);
+        } else {
+            this.scheduleTimeouts(key, now);
+        }
+    }
+
+    /**
+     * Schedules the next check of the timeouts of a connection at the nearest deadline.
+     * With the read (write) timeout enabled the connection is checked at least every READ_TIMEOUT (WRITE_TIMEOUT),
+     * so a frame (response) started after the check is not missed
+     *
+     * @param key of the client
+     * @param now current time (ms)
+     */
+    private void scheduleTimeouts(SelectionKey key, long now) {
+        Attachment attachment = (Attachment) key.attachment();
+        long deadline = Long.MAX_VALUE;
+        if (ServerConfig.IDLE_TIMEOUT > 0)
+            deadline = attachment.getLastActivity() + ServerConfig.IDLE_TIMEOUT;
+        if (ServerConfig.READ_TIMEOUT > 0) {
+            long partialSince = attachment.getPartialSince();
+            deadline = Math.min(deadline, (partialSince == -1 ? now : partialSince) + ServerConfig.READ_TIMEOUT);
+        }
+        if (ServerConfig.WRITE_TIMEOUT > 0) {
+            long writeSince = attachment.getWriteSince();
+            deadline = Math.min(deadline, (writeSince == -1 ? now : writeSince) + ServerConfig.WRITE_TIMEOUT);
+        }
+        if (deadline != Long.MAX_VALUE)
+            attachment.setTimeout(timeouts.schedule(key, deadline - now, now));
+    }
+
+    /**
+     * @return current time (ms) of the monotonic clock used by the timeouts
+     */
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    /**
+     * Called when the connection with the client is lost:
+     * if the user was online, he/she is logged out after the requests still in progress.
+     * It runs on the selector thread, only the first call for a connection has effect
+     *
+     * @param key of the client
+     */
+    private void disconnect(SelectionKey key) {
+        if (!key.isValid()) return;
+        Attachment attachment = (Attachment) key.attachment();
+        attachment.submit(() -> dispatcher.disconnect(attachment), executor);
+        this.close(key);
+    }
+
+    /**
+     * Closes the connection once the pending responses have been written
+     *
+     * @param key of the client
+     */
+    private void closeAfterWriting(SelectionKey key) {
+        if (!key.isValid()) return;
+        Attachment attachment = (Attachment) key.attachment();
+        attachment.setClosing();
+        if (attachment.getResponses().isEmpty())
+            this.close(key);
+    }
+
+    /**
+     * Closes the connection and gives its buffers back to the pool
+     *
+     * @param key of the client
+     */
+    private void close(SelectionKey key) {
+        if (!key.isValid()) return;
+        ConnectionLimit.release();
+        Attachment attachment = (Attachment) key.attachment();
+        outboundBytes.addAndGet(-attachment.getOutboundBytes());
+        attachment.release(executor);
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
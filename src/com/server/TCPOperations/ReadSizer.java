@@ -0,0 +1,64 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.Histogram;
+import com.utils.Metrics;
+
+/**
+ * @author Davide Chen
+ *
+ * Size of the reads of a connection, adapted to the frames that it sends.
+ * It grows fast: at once to fit the rest of the frame being received, or doubling when a read fills the buffer.
+ * It shrinks slowly: by half after SHRINK_AFTER consecutive reads that would have fitted in half of it.
+ * The sizes are powers of 2 between ServerConfig.MIN_READ_SIZE and ServerConfig.MAX_READ_SIZE,
+ * as the classes of the BufferPool
+ */
+class ReadSizer {
+    private static final int INITIAL_SIZE = 2048;
+    private static final int SHRINK_AFTER = 8;
+    private static final Histogram sizes = Metrics.histogram("net.read_size");
+    private int size;           // bytes of the next read
+    private int smallReads;     // consecutive reads that would have fitted in half of the size
+
+    ReadSizer() {
+        this.size = clamp(INITIAL_SIZE);
+        this.smallReads = 0;
+    }
+
+    /**
+     * @return bytes of the next read
+     */
+    int next() {
+        sizes.record(size);
+        return size;
+    }
+
+    /**
+     * Adapts the size after a read
+     *
+     * @param read bytes read
+     * @param missing bytes of the frame being received that haven't been read yet, 0 if none
+     */
+    void update(int read, int missing) {
+        if (missing > size || read >= size) {
+            size = clamp(Math.max(size << 1, missing));
+            smallReads = 0;
+        } else if (read <= size >> 1 && missing <= size >> 1) {
+            if (++smallReads >= SHRINK_AFTER) {
+                size = clamp(size >> 1);
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    /**
+     * @return the power of 2 that fits the bytes, within the bounds of the configuration
+     */
+    private static int clamp(int bytes) {
+        if (bytes <= ServerConfig.MIN_READ_SIZE) return ServerConfig.MIN_READ_SIZE;
+        if (bytes >= ServerConfig.MAX_READ_SIZE) return ServerConfig.MAX_READ_SIZE;
+        return Integer.highestOneBit(bytes - 1) << 1;
+    }
+}
@@ -0,0 +1,679 @@
+package com.server.TCPOperations;
+
+import com.CommunicationProtocol;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.LongNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.server.RMIOperations.RMICallbackServiceImpl;
+import com.server.ServerConfig;
+import com.data.*;
+import com.exceptions.*;
+import com.utils.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * @author Davide Chen
+ *
+ * Executes the clients' requests on the application data.
+ * Every command has a handler in the registry: the number of arguments, the login and the validators
+ * are checked before calling it, and the exceptions it throws are converted into the status code of the response.
+ * The interceptors are executed around every command (batched requests too)
+ * The commands that are expensive for the CPU (login, that hashes the password) are executed on a bounded pool,
+ * so they don't block the thread that serves the connections: their response is completed asynchronously
+ * It is shared by all the selectors, so it must not keep any per-connection state
+ */
+class RequestDispatcher {
+    // commands that can be part of a batch
+    private static final Set<String> BATCH_COMMANDS = new HashSet<>(Arrays.asList(
+            CommunicationProtocol.LIST_PROJECTS_CMD,
+            CommunicationProtocol.CREATE_PROJECT_CMD,
+            CommunicationProtocol.ADD_MEMBER_CMD,
+            CommunicationProtocol.SHOW_MEMBERS_CMD,
+            CommunicationProtocol.SHOW_CARDS_CMD,
+            CommunicationProtocol.SHOW_CARD_CMD,
+            CommunicationProtocol.ADD_CARD_CMD,
+            CommunicationProtocol.MOVE_CARD_CMD,
+            CommunicationProtocol.CARD_HISTORY_CMD,
+            CommunicationProtocol.CANCEL_PROJECT_CMD
+    ));
+    // commands that can be part of an atomic batch: their effects can be undone
+    // (not list_projects, the batch would lock and back up all the projects)
+    private static final Set<String> ATOMIC_BATCH_COMMANDS = new HashSet<>(Arrays.asList(
+            CommunicationProtocol.SHOW_MEMBERS_CMD,
+            CommunicationProtocol.SHOW_CARDS_CMD,
+            CommunicationProtocol.SHOW_CARD_CMD,
+            CommunicationProtocol.ADD_CARD_CMD,
+            CommunicationProtocol.MOVE_CARD_CMD,
+            CommunicationProtocol.CARD_HISTORY_CMD
+    ));
+    // status code of the response when the application data throws the exception
+    private static final Map<Class<? extends Exception>, Integer> STATUS_CODES = new HashMap<>();
+    static {
+        STATUS_CODES.put(UserNotExistException.class, CommunicationProtocol.USER_NOT_EXISTS);
+        STATUS_CODES.put(UserNotLoggedException.class, CommunicationProtocol.USER_NOT_LOGGED);
+        STATUS_CODES.put(AlreadyLoggedInException.class, CommunicationProtocol.LOGIN_ALREADY_LOGGED);
+        STATUS_CODES.put(WrongPasswordException.class, CommunicationProtocol.LOGIN_WRONGPWD);
+        STATUS_CODES.put(CharactersNotAllowedException.class, CommunicationProtocol.CHARS_NOT_ALLOWED);
+        STATUS_CODES.put(ProjectNotExistException.class, CommunicationProtocol.PROJECT_NOT_EXISTS);
+        STATUS_CODES.put(ProjectAlreadyExistException.class, CommunicationProtocol.CREATEPROJECT_ALREADYEXISTS);
+        STATUS_CODES.put(NoSuchAddressException.class, CommunicationProtocol.CREATEPROJECT_NOMOREADDRESSES);
+        STATUS_CODES.put(NoSuchPortException.class, CommunicationProtocol.CREATEPROJECT_NOMOREPORTS);
+        STATUS_CODES.put(UnauthorizedUserException.class, CommunicationProtocol.UNAUTHORIZED);
+        STATUS_CODES.put(UserAlreadyMemberException.class, CommunicationProtocol.ADD_MEMBER_ALREADYPRESENT);
+        STATUS_CODES.put(CardNotExistException.class, CommunicationProtocol.CARD_NOT_EXISTS);
+        STATUS_CODES.put(CardAlreadyExistsException.class, CommunicationProtocol.ADD_CARD_ALREADYEXISTS);
+        STATUS_CODES.put(OperationNotAllowedException.class, CommunicationProtocol.MOVE_CARD_NOT_ALLOWED);
+        STATUS_CODES.put(ProjectNotCancelableException.class, CommunicationProtocol.CANCELPROJECT_NOTCANCELABLE);
+    }
+    private static final Histogram batchSizes = Metrics.histogram("batch.size");
+    private static final LongAdder abortedBatches = Metrics.counter("batch.aborted");
+    private static final long BUSY_RETRY_AFTER = 100;      // ms suggested to the clients when an executor is full
+    private final TCPOperations data;                       // application data
+    private final ObjectMapper mapper;                      // mapper used for Jackson serialization / deserialization
+    private final RMICallbackServiceImpl callbackService;   // callback service
+    private final Map<String, Command> commands;            // registry of the commands, by name
+    private final List<CommandInterceptor> interceptors;    // hooks executed around every command
+    private final SessionManager sessions;                  // sessions of the online users
+    private final ThreadPoolExecutor loginPool;             // hashes the passwords of the logins
+
+    RequestDispatcher(TCPOperations data, RMICallbackServiceImpl callbackService) {
+        this.data = data;
+        this.callbackService = callbackService;
+
+        this.mapper = new MyObjectMapper();
+        // the bodies are sent on the network, no indentation
+        this.mapper.disable(SerializationFeature.INDENT_OUTPUT);
+
+        this.sessions = new SessionManager();
+
+        // bounded: when it is full the logins are THROTTLED instead of queueing without limit
+        this.loginPool = new ThreadPoolExecutor(ServerConfig.LOGIN_THREADS, ServerConfig.LOGIN_THREADS,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.LOGIN_QUEUE), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "login-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Metrics.gauge("login.queue_depth", () -> this.loginPool.getQueue().size());
+
+        this.commands = new HashMap<>();
+        this.register(CommunicationProtocol.LOGIN_CMD, 2, false, this::login)
+                .runOn(this.loginPool);
+        this.register(CommunicationProtocol.LOGOUT_CMD, Command.ANY, false, this::logout);
+        this.register(CommunicationProtocol.LIST_PROJECTS_CMD, Command.ANY, true, this::listProjects);
+        this.register(CommunicationProtocol.CREATE_PROJECT_CMD, 1, true, this::createProject)
+                .validate(0, CommunicationProtocol.STRING_PATTERN);
+        this.register(CommunicationProtocol.ADD_MEMBER_CMD, 2, true, this::addMember);
+        this.register(CommunicationProtocol.SHOW_MEMBERS_CMD, 1, true, this::showMembers);
+        this.register(CommunicationProtocol.SHOW_CARDS_CMD, 1, true, this::showCards);
+        this.register(CommunicationProtocol.SHOW_CARD_CMD, 2, true, this::showCard);
+        this.register(CommunicationProtocol.ADD_CARD_CMD, 3, true, this::addCard)
+                .validate(1, CommunicationProtocol.STRING_PATTERN);
+        this.register(CommunicationProtocol.MOVE_CARD_CMD, 4, true, this::moveCard);
+        this.register(CommunicationProtocol.CARD_HISTORY_CMD, 2, true, this::getCardHistory);
+        this.register(CommunicationProtocol.CANCEL_PROJECT_CMD, 1, true, this::cancelProject);
+        this.register(CommunicationProtocol.BATCH_CMD, Command.ANY, true, this::batch);
+        this.register(CommunicationProtocol.EXIT_CMD, Command.ANY, false, this::exit);
+        this.register(CommunicationProtocol.RESUME_CMD, 1, false, this::resume);
+
+        this.interceptors = new CopyOnWriteArrayList<>();
+        // the requests over the limit are rejected before being timed
+        this.interceptors.add(new RateLimitInterceptor());
+        this.interceptors.add(new TimingInterceptor());
+    }
+
+    /**
+     * Command of the registry, with the checks done before executing its handler
+     */
+    private static class Command {
+        private static final int ANY = -1;                  // the arguments are checked by the handler
+
+        private final String name;
+        private final CommandHandler handler;               // executes the command
+        private final int arguments;                        // number of arguments required, or ANY
+        private final boolean loginRequired;                // only online users can execute the command
+        private final Map<Integer, Pattern> validators;     // patterns that the arguments must match, by index
+        private Executor executor;                           // executes the command, null = the caller thread
+        private Histogram queued;                           // ns waited in the queue of the executor
+        private LongAdder rejected;                         // requests rejected by the executor, full
+
+        private Command(String name, CommandHandler handler, int arguments, boolean loginRequired) {
+            this.name = name;
+            this.handler = handler;
+            this.arguments = arguments;
+            this.loginRequired = loginRequired;
+            this.validators = new HashMap<>();
+            this.executor = null;
+            this.queued = null;
+            this.rejected = null;
+        }
+
+        /**
+         * @param executor executes the command instead of the thread that received the request
+         */
+        Command runOn(Executor executor) {
+            this.executor = executor;
+            this.queued = Metrics.histogram("command." + this.name + ".queued");
+            this.rejected = Metrics.counter("command." + this.name + ".rejected");
+            return this;
+        }
+
+        /**
+         * @param argument index of the argument
+         * @param pattern the argument must match, otherwise the response is CHARS_NOT_ALLOWED
+         */
+        Command validate(int argument, Pattern pattern) {
+            this.validators.put(argument, pattern);
+            return this;
+        }
+
+        /**
+         * @return OP_SUCCESS if the command can be executed, otherwise the status code of the response
+         */
+        int check(CommandContext context) {
+            List<String> arguments = context.getArguments();
+            if (this.arguments != ANY && arguments.size() != this.arguments)
+                return CommunicationProtocol.COMMUNICATION_ERROR;
+            if (this.loginRequired && context.getUsername() == null)
+                return CommunicationProtocol.USER_NOT_LOGGED;
+            for (Map.Entry<Integer, Pattern> validator : this.validators.entrySet())
+                if (!validator.getValue().matcher(arguments.get(validator.getKey())).matches())
+                    return CommunicationProtocol.CHARS_NOT_ALLOWED;
+            return CommunicationProtocol.OP_SUCCESS;
+        }
+    }
+
+    /**
+     * Adds a command to the registry
+     *
+     * @param name of the command
+     * @param arguments number of arguments required, Command.ANY if they are checked by the handler
+     * @param loginRequired true if only online users can execute the command
+     * @param handler executes the command
+     *
+     * @return the command, to add the validators of its arguments
+     */
+    private Command register(String name, int arguments, boolean loginRequired, CommandHandler handler) {
+        Command command = new Command(name, handler, arguments, loginRequired);
+        this.commands.put(name, command);
+        return command;
+    }
+
+    private static ResponseMessage status(int statusCode) {
+        return new ResponseMessage(statusCode, null, null);
+    }
+
+    private static ResponseMessage success(JsonNode responseBody, JsonNode responseBody2) {
+        return new ResponseMessage(CommunicationProtocol.OP_SUCCESS, responseBody, responseBody2);
+    }
+
+    /**
+     * Stops the threads of the dispatcher, called at shutdown after the last request:
+     * the logins still queued are dropped, the running ones are completed before the data is saved
+     */
+    void shutdown() {
+        loginPool.shutdown();
+        loginPool.getQueue().clear();
+        try {
+            loginPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        sessions.shutdown();
+    }
+
+    /**
+     * Adds a hook executed around every command, after the ones already added
+     *
+     * @param interceptor to add
+     */
+    void addInterceptor(CommandInterceptor interceptor) {
+        this.interceptors.add(interceptor);
+    }
+
+    /**
+     * Executes the request of a client, on the executor of its command if it has one
+     *
+     * @param requestMessage request received from the client
+     * @param attachment of the client's connection
+     *
+     * @return response message for the client, null if the client asked to close the connection.
+     *         It is already completed, unless the command runs on an executor.
+     *         It completes exceptionally (IOException) if there are errors in saving the data
+     *         or in notifying the project chat
+     */
+    CompletableFuture<ResponseMessage> dispatch(RequestMessage requestMessage, Attachment attachment) {
+        Command command = this.commands.get(requestMessage.getCommand());
+        if (command == null || command.executor == null) {
+            try {
+                return CompletableFuture.completedFuture(this.dispatch(requestMessage, attachment, null));
+            } catch (IOException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        long submitted = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                command.queued.record(System.nanoTime() - submitted);
+                try {
+                    return this.dispatch(requestMessage, attachment, null);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, command.executor);
+        } catch (RejectedExecutionException e) {
+            // the queue is full, the client retries later
+            command.rejected.increment();
+            return CompletableFuture.completedFuture(new ResponseMessage(CommunicationProtocol.THROTTLED,
+                    LongNode.valueOf(BUSY_RETRY_AFTER), null));
+        }
+    }
+
+    /**
+     * @param chatMessages where the messages for the project chats are added, to be sent later;
+     *                     if null they are sent immediately
+     */
+    private ResponseMessage dispatch(RequestMessage requestMessage, Attachment attachment,
+                                     List<DatagramPacket> chatMessages) throws IOException {
+        Command command = this.commands.get(requestMessage.getCommand());
+        if (command == null)
+            return status(CommunicationProtocol.UNKNOWN);
+
+        CommandContext context = new CommandContext(requestMessage, attachment, chatMessages);
+        try {
+            return this.proceed(context, command, 0);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // exceptions of the application data => status code of the response
+            Integer statusCode = STATUS_CODES.get(e.getClass());
+            if (statusCode == null)
+                throw new IOException(e);
+            return status(statusCode);
+        }
+    }
+
+    /**
+     * Executes the interceptors starting from the given one, then the command
+     *
+     * @param interceptor index of the next interceptor to execute
+     */
+    private ResponseMessage proceed(CommandContext context, Command command, int interceptor) throws Exception {
+        if (interceptor < this.interceptors.size())
+            return this.interceptors.get(interceptor).intercept(context,
+                    next -> this.proceed(next, command, interceptor + 1));
+
+        int statusCode = command.check(context);
+        if (statusCode != CommunicationProtocol.OP_SUCCESS)
+            return status(statusCode);
+        return command.handler.handle(context);
+    }
+
+    private ResponseMessage login(CommandContext context) throws Exception {
+        String username = context.getArgument(0);
+        String hash = context.getArgument(1);
+        // a user whose connection has been lost is still ONLINE during the grace window:
+        // logging in again only ends the old session
+        boolean online = false;
+        if (sessions.isDetached(username)) {
+            data.checkPassword(username, hash);
+            online = sessions.reclaim(username);
+        }
+        if (!online)
+            data.login(username, hash);
+
+        // response body: list of users and their status
+        Map<String, UserStatus> userStatus = data.getUserStatus();
+        // response body 2: list of his/her projects
+        Map<String, InetAddress> chatsAddresses = new Hashtable<>();
+        for (Project project : data.listProjects(username)) {
+            String projectName = project.getName();
+            String chatAddress = data.getProjectChatAddress(projectName);
+            InetAddress group = InetAddress.getByName(chatAddress);
+            chatsAddresses.put(projectName, group);
+        }
+
+        // notifies users that the user 'username' is now online
+        if (!online)
+            callbackService.notifyUsers(username, UserStatus.ONLINE);
+
+        // insert the username in the attachment
+        context.getAttachment().setUsername(username);
+        ResponseMessage response = success(this.mapper.valueToTree(userStatus), this.mapper.valueToTree(chatsAddresses));
+        response.setSessionToken(sessions.open(username, context.getAttachment()));
+        return response;
+    }
+
+    private ResponseMessage resume(CommandContext context) {
+        if (context.getUsername() != null)
+            return status(CommunicationProtocol.LOGIN_ALREADY_LOGGED);
+        // the user is still ONLINE, nobody has to be notified
+        if (sessions.resume(context.getArgument(0), context.getAttachment()) == null)
+            return status(CommunicationProtocol.SESSION_INVALID);
+        return success(null, null);
+    }
+
+    private ResponseMessage logout(CommandContext context) throws Exception {
+        String username = context.getUsername();
+        // nothing to do if the user is not logged in
+        if (username != null) {
+            sessions.close(username);
+            data.logout(username);
+
+            // notify other users that 'username' is offline
+            callbackService.notifyUsers(username, UserStatus.OFFLINE);
+
+            context.getAttachment().setUsername(null);
+        }
+        return success(null, null);
+    }
+
+    private ResponseMessage listProjects(CommandContext context) throws Exception {
+        List<Project> projects = data.listProjects(context.getUsername());
+        return success(this.mapper.valueToTree(projects), null);
+    }
+
+    private ResponseMessage createProject(CommandContext context) throws Exception {
+        String projectName = context.getArgument(0);
+        data.createProject(projectName, context.getUsername());
+
+        String chatAddress = data.getProjectChatAddress(projectName);
+        return success(this.mapper.valueToTree(chatAddress), null);
+    }
+
+    private ResponseMessage addMember(CommandContext context) throws Exception {
+        String projectName = context.getArgument(0);
+        String userToAdd = context.getArgument(1);
+        data.addMember(projectName, userToAdd, context.getUsername());
+
+        String chatAddress = data.getProjectChatAddress(projectName);
+        // notifies user 'userToAdd' that he/she is now a member of the project 'projectName'
+        callbackService.notifyProject(userToAdd, projectName, chatAddress);
+        return success(null, null);
+    }
+
+    private ResponseMessage showMembers(CommandContext context) throws Exception {
+        List<String> members = data.showMembers(context.getArgument(0), context.getUsername());
+        return success(this.mapper.valueToTree(members), null);
+    }
+
+    private ResponseMessage showCards(CommandContext context) throws Exception {
+        Map<CardStatus, List<String>> cards = data.showCards(context.getArgument(0), context.getUsername());
+        return success(this.mapper.valueToTree(cards), null);
+    }
+
+    private ResponseMessage showCard(CommandContext context) throws Exception {
+        Card card = data.showCard(context.getArgument(0), context.getArgument(1), context.getUsername());
+        // serialize interface elements only
+        return success(this.toTree(this.mapper.writerFor(Card.class), card), null);
+    }
+
+    private ResponseMessage addCard(CommandContext context) throws Exception {
+        data.addCard(context.getArgument(0), context.getArgument(1), context.getArgument(2), context.getUsername());
+        return success(null, null);
+    }
+
+    private ResponseMessage moveCard(CommandContext context) throws Exception {
+        String username = context.getUsername();
+        String projectName = context.getArgument(0);
+        String cardName = context.getArgument(1);
+        CardStatus from = CardStatus.retriveFromString(context.getArgument(2));
+        CardStatus to = CardStatus.retriveFromString(context.getArgument(3));
+
+        // check that 'from' and 'to' are not null
+        if (from == null || to == null)
+            return status(CommunicationProtocol.COMMUNICATION_ERROR);
+
+        data.moveCard(projectName, cardName, from, to, username);
+
+        // operation succeed
+        // the server notifies all users in the project chat
+        try {
+            UDPMessage udpMessage = new UDPMessage(
+                    CommunicationProtocol.SYSTEM_NAME,
+                    username + " moved card '" + cardName +
+                            "' from " + from.name() + " to " + to.name(),
+                    projectName,
+                    true
+            );
+            DatagramPacket packet = this.chatPacket(projectName, udpMessage);
+            // in a batch, the chat is notified when the batch has been executed
+            if (context.getChatMessages() != null) {
+                context.getChatMessages().add(packet);
+            } else {
+                this.sendChatMessages(Collections.singletonList(packet));
+            }
+        } catch (ProjectNotExistException e) {
+            e.printStackTrace();
+        }
+        return success(null, null);
+    }
+
+    private ResponseMessage getCardHistory(CommandContext context) throws Exception {
+        List<Movement> cardHistory = data.getCardHistory(context.getArgument(0), context.getArgument(1),
+                context.getUsername());
+        return success(this.mapper.valueToTree(cardHistory), null);
+    }
+
+    private ResponseMessage cancelProject(CommandContext context) throws Exception {
+        String username = context.getUsername();
+        String projectName = context.getArgument(0);
+
+        // the server notifies all users in the project chat
+        // that the project has been deleted
+        UDPMessage udpMessage = new UDPMessage(
+                CommunicationProtocol.SYSTEM_NAME,
+                CommunicationProtocol.UDP_TERMINATE_MSG,
+                projectName,
+                true
+        );
+        DatagramPacket packet = this.chatPacket(projectName, udpMessage);
+
+        // retrieval of the list of members to terminate the project chat
+        List<String> members = data.showMembers(projectName, username);
+
+        // delete project
+        data.cancelProject(projectName, username);
+
+        this.sendChatMessages(Collections.singletonList(packet));
+
+        // terminate
+        callbackService.terminateChat(projectName, members);
+        return success(null, null);
+    }
+
+    private ResponseMessage batch(CommandContext context) throws IOException {
+        // check parameters: the sub-requests and the optional BATCH_ATOMIC
+        List<RequestMessage> requests = context.getRequest().getRequests();
+        List<String> arguments = context.getArguments();
+        if (requests == null || requests.size() > ServerConfig.MAX_BATCH_SIZE || arguments.size() > 1 ||
+                (arguments.size() == 1 && !arguments.get(0).equals(CommunicationProtocol.BATCH_ATOMIC)))
+            return status(CommunicationProtocol.COMMUNICATION_ERROR);
+        if (usesChangedProject(requests))
+            return status(CommunicationProtocol.COMMUNICATION_ERROR);
+
+        List<ResponseMessage> batchResponses = new ArrayList<>(requests.size());
+        boolean completed = this.executeBatch(requests, arguments.size() == 1, context.getAttachment(), batchResponses);
+
+        ResponseMessage response = status(completed ? CommunicationProtocol.OP_SUCCESS : CommunicationProtocol.BATCH_ABORTED);
+        response.setResponses(batchResponses);
+        return response;
+    }
+
+    private ResponseMessage exit(CommandContext context) throws Exception {
+        // in case the user is still online, the session ends now
+        String username = context.getUsername();
+        if (username != null) {
+            context.getAttachment().setUsername(null);
+            sessions.close(username);
+            this.logoutUser(username);
+        }
+
+        // no response, the connection has to be closed
+        return null;
+    }
+
+    /**
+     * The locks of the projects are taken at the start of the batch:
+     * a project created or canceled by a request can't be used by the following ones
+     *
+     * @return true if a request uses a project created or canceled earlier in the batch
+     */
+    private static boolean usesChangedProject(List<RequestMessage> requests) {
+        Set<String> changed = new HashSet<>();
+        for (RequestMessage request : requests) {
+            List<String> arguments = request.getArguments();
+            if (CommunicationProtocol.LIST_PROJECTS_CMD.equals(request.getCommand()) ||
+                    arguments == null || arguments.isEmpty())
+                continue;
+            if (changed.contains(arguments.get(0)))
+                return true;
+            if (CommunicationProtocol.CREATE_PROJECT_CMD.equals(request.getCommand()) ||
+                    CommunicationProtocol.CANCEL_PROJECT_CMD.equals(request.getCommand()))
+                changed.add(arguments.get(0));
+        }
+        return false;
+    }
+
+    /**
+     * Executes the requests of a batch in order, the projects are saved once at the end
+     *
+     * @param requests of the batch
+     * @param atomic if true the batch stops at the first request that fails and nothing is applied
+     * @param attachment of the client's connection
+     * @param responses where the responses to the requests executed are added
+     *
+     * @return false if the batch is atomic and it has been aborted
+     *
+     * @throws IOException if there are errors in saving the data or in notifying the project chats
+     */
+    private boolean executeBatch(List<RequestMessage> requests, boolean atomic, Attachment attachment,
+                                 List<ResponseMessage> responses) throws IOException {
+        // the projects involved are the first argument of the commands on a project,
+        // list_projects reads all of them
+        Set<String> projectNames = new HashSet<>();
+        for (RequestMessage request : requests) {
+            List<String> arguments = request.getArguments();
+            if (CommunicationProtocol.LIST_PROJECTS_CMD.equals(request.getCommand())) {
+                projectNames = null;
+                break;
+            }
+            if (arguments != null && !arguments.isEmpty())
+                projectNames.add(arguments.get(0));
+        }
+
+        List<DatagramPacket> chatMessages = new ArrayList<>();
+        boolean completed = data.executeBatch(projectNames, atomic, () -> {
+            for (RequestMessage request : requests) {
+                ResponseMessage response;
+                if ((atomic ? ATOMIC_BATCH_COMMANDS : BATCH_COMMANDS).contains(request.getCommand())) {
+                    response = this.dispatch(request, attachment, chatMessages);
+                } else {
+                    response = status(CommunicationProtocol.COMMUNICATION_ERROR);
+                }
+                response.setId(request.getId());
+                responses.add(response);
+
+                if (atomic && response.getStatusCode() != CommunicationProtocol.OP_SUCCESS)
+                    return false;
+            }
+            return true;
+        });
+
+        batchSizes.record(requests.size());
+        if (!completed) {
+            abortedBatches.increment();
+            return false;
+        }
+        this.sendChatMessages(chatMessages);
+        return true;
+    }
+
+    /**
+     * @param projectName name of the project
+     * @param udpMessage message for the chat of the project
+     *
+     * @throws ProjectNotExistException if the project doesn't exist
+     *
+     * @return packet to send to the multicast group of the project chat
+     */
+    private DatagramPacket chatPacket(String projectName, UDPMessage udpMessage)
+            throws IOException, ProjectNotExistException {
+        String chatAddress = data.getProjectChatAddress(projectName);
+        InetAddress group = InetAddress.getByName(chatAddress);
+
+        byte[] byteMessage = this.mapper.writeValueAsBytes(udpMessage);
+        return new DatagramPacket(
+                byteMessage,
+                byteMessage.length,
+                group,
+                CommunicationProtocol.MULTICAST_GROUP_PORT
+        );
+    }
+
+    /**
+     * @param packets to send to the project chats
+     */
+    private void sendChatMessages(List<DatagramPacket> packets) throws IOException {
+        if (packets.isEmpty()) return;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (DatagramPacket packet : packets)
+                socket.send(packet);
+        }
+    }
+
+    /**
+     * Converts a value into the body of a response, with the serialization of the writer
+     *
+     * @param writer that decides which properties are serialized
+     * @param value to convert
+     */
+    private JsonNode toTree(ObjectWriter writer, Object value) throws IOException {
+        TokenBuffer buffer = new TokenBuffer(this.mapper, false);
+        writer.writeValue(buffer, value);
+        return this.mapper.readTree(buffer.asParser());
+    }
+
+    /**
+     * Called when the connection with a client is lost:
+     * if the user was online, he/she is logged out at the end of the grace window of the session
+     *
+     * @param attachment of the client's connection
+     */
+    void disconnect(Attachment attachment) {
+        String username = attachment.getUsername();
+        if (username != null) {
+            attachment.setUsername(null);
+            if (!sessions.detach(username, attachment, () -> this.logoutUser(username)))
+                this.logoutUser(username);
+        }
+    }
+
+    /**
+     * Logs out a user and notifies the other users that he/she is offline
+     *
+     * @param username of the user
+     */
+    private void logoutUser(String username) {
+        try {
+            data.logout(username);
+            callbackService.notifyUsers(username, UserStatus.OFFLINE);
+        } catch (UserNotExistException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.server.TCPOperations;
+
+import com.data.CardImpl;
+import com.data.Project;
+import com.utils.Histogram;
+import com.utils.Metrics;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * @author Davide Chen
+ *
+ * Keeps in memory the cards of the projects used recently (ServerConfig.RESIDENCY_BUDGET > 0).
+ * The Database loads the cards of a project from its files the first time they are needed,
+ * then the cards of the least recently used projects are dropped while the estimated size
+ * of the cards in memory is over the budget; the metadata of the projects always stays in memory.
+ *
+ * The sizes are estimated from the length of the strings and the number of movements,
+ * they are not measured on the heap
+ */
+class ResidencyManager {
+    static final long CARD_BYTES = 256;         // estimated size of a card, without its strings and movements
+    static final long MOVEMENT_BYTES = 96;      // estimated size of a movement
+    private static final LongAdder hits = Metrics.counter("residency.hits");
+    private static final LongAdder misses = Metrics.counter("residency.misses");
+    private static final LongAdder evictions = Metrics.counter("residency.evictions");
+    private static final Histogram loadNanos = Metrics.histogram("residency.load");
+
+    private final long budget;                          // estimated bytes of the cards in memory
+    private final Predicate<Project> busy;              // projects whose cards can't be dropped now
+    private final LinkedHashMap<String, Resident> resident;    // projects with their cards in memory, least recently used first
+    private final Map<Project, Integer> pins;           // projects whose cards are needed until unpinned
+    private long bytes;                                 // estimated size of the cards in memory
+
+    /**
+     * Project with its cards in memory
+     */
+    private static class Resident {
+        private final Project project;
+        private long bytes;                             // estimated size of its cards
+
+        private Resident(Project project, long bytes) {
+            this.project = project;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param budget estimated bytes of the cards that can stay in memory
+     * @param busy tells, holding the lock of a project, if its cards have changes not saved yet
+     */
+    ResidencyManager(long budget, Predicate<Project> busy) {
+        this.budget = budget;
+        this.busy = busy;
+        this.resident = new LinkedHashMap<>(16, 0.75f, true);
+        this.pins = new IdentityHashMap<>();
+        this.bytes = 0;
+        Metrics.gauge("residency.bytes", () -> {
+            synchronized (this) {
+                return this.bytes;
+            }
+        });
+        Metrics.gauge("residency.projects", () -> {
+            synchronized (this) {
+                return this.resident.size();
+            }
+        });
+    }
+
+    /**
+     * @return estimated size of a card
+     */
+    static long estimate(CardImpl card) {
+        return CARD_BYTES + 2L * (card.getName().length() + card.getDescription().length()) +
+                MOVEMENT_BYTES * card.getMovements().size();
+    }
+
+    /**
+     * @return estimated size of the cards
+     */
+    static long estimate(List<CardImpl> cards) {
+        long total = 0;
+        for (CardImpl card : cards)
+            total += estimate(card);
+        return total;
+    }
+
+    /**
+     * The cards of a project in memory are used, the lock of the project must be held
+     */
+    synchronized void hit(Project project) {
+        hits.increment();
+        Resident entry = resident.get(project.getName());
+        if (entry == null || entry.project != project)
+            // created after the startup
+            this.resize(project, estimate(project.getAllCards()));
+    }
+
+    /**
+     * The cards of a project have been loaded, the lock of the project must be held
+     *
+     * @param nanos spent loading them
+     */
+    synchronized void loaded(Project project, long nanos) {
+        misses.increment();
+        loadNanos.record(nanos);
+        this.resize(project, estimate(project.getAllCards()));
+    }
+
+    /**
+     * The cards of a project in memory have grown, the lock of the project must be held
+     *
+     * @param delta estimated bytes added
+     */
+    synchronized void grow(Project project, long delta) {
+        Resident entry = resident.get(project.getName());
+        if (entry == null || entry.project != project) {
+            this.resize(project, estimate(project.getAllCards()));
+        } else {
+            entry.bytes += delta;
+            bytes += delta;
+        }
+    }
+
+    /**
+     * Sets the estimated size of the cards of a project, the lock of the project must be held
+     */
+    synchronized void resize(Project project, long size) {
+        Resident entry = resident.get(project.getName());
+        if (entry == null || entry.project != project) {
+            // a project with the same name could have been canceled
+            if (entry != null)
+                bytes -= entry.bytes;
+            entry = new Resident(project, 0);
+            resident.put(project.getName(), entry);
+        }
+        bytes += size - entry.bytes;
+        entry.bytes = size;
+    }
+
+    /**
+     * The project has been canceled, the lock of the project must be held
+     */
+    synchronized void remove(Project project) {
+        Resident entry = resident.get(project.getName());
+        if (entry != null && entry.project == project) {
+            resident.remove(project.getName());
+            bytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * The cards of the project must stay in memory until unpin(),
+     * e.g. while a batch has changes of the project not saved yet
+     */
+    synchronized void pin(Project project) {
+        pins.merge(project, 1, Integer::sum);
+    }
+
+    synchronized void unpin(Project project) {
+        pins.computeIfPresent(project, (p, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Drops the cards of the least recently used projects until they are within the budget,
+     * the most recently used one always stays.
+     * It must be called without holding the locks of the projects
+     */
+    void evict() {
+        Set<Project> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (true) {
+            Project victim = null;
+            synchronized (this) {
+                if (bytes <= budget || resident.size() <= 1)
+                    return;
+                Iterator<Resident> iterator = resident.values().iterator();
+                // the last one is the most recently used
+                for (int left = resident.size() - 1; left > 0; left--) {
+                    Project candidate = iterator.next().project;
+                    if (!pins.containsKey(candidate) && !skipped.contains(candidate)) {
+                        victim = candidate;
+                        break;
+                    }
+                }
+                if (victim == null)
+                    return;
+            }
+
+            synchronized (victim) {
+                if (busy.test(victim)) {
+                    skipped.add(victim);
+                    continue;
+                }
+                synchronized (this) {
+                    Resident entry = resident.get(victim.getName());
+                    if (pins.containsKey(victim) || entry == null || entry.project != victim) {
+                        skipped.add(victim);
+                        continue;
+                    }
+                    resident.remove(victim.getName());
+                    bytes -= entry.bytes;
+                }
+                victim.unloadCards();
+                evictions.increment();
+            }
+        }
+    }
+}
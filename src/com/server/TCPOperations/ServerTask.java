@@ -0,0 +1,19 @@
+package com.server.TCPOperations;
+
+import com.utils.PhaseTimer;
+
+/**
+ * @author Davide Chen
+ *
+ * Task that accepts the TCP connections of the clients and serves their requests
+ */
+public interface ServerTask extends Runnable {
+
+    /**
+     * Notifies the clients and stops accepting connections: the task ends when the requests in progress
+     * have been executed and their responses sent, at most ServerConfig.SHUTDOWN_TIMEOUT ms later
+     *
+     * @param phases where the task ends the phases of the shutdown, until its end
+     */
+    void shutdownServer(PhaseTimer phases);
+}
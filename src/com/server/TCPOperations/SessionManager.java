@@ -0,0 +1,263 @@
+package com.server.TCPOperations;
+
+import com.server.ServerConfig;
+import com.utils.Metrics;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Sessions of the online users. At login the user receives a signed token (username.nonce.signature):
+ * with the RESUME command a new connection takes the place of the old one, without checking the password again.
+ * When the connection of a user is lost the user remains ONLINE for ServerConfig.SESSION_GRACE ms,
+ * if the session is not resumed in the meantime the user is logged out
+ */
+class SessionManager {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+    private static final LongAdder resumed = Metrics.counter("sessions.resumed");
+    private static final LongAdder resumeFailed = Metrics.counter("sessions.resume_failed");
+    private static final LongAdder expired = Metrics.counter("sessions.expired");
+
+    private final SecretKeySpec key;                    // signs the tokens, valid until the server restarts
+    private final ThreadLocal<Mac> macs;                // a Mac is not thread safe
+    private final SecureRandom random;
+    private final Map<String, Session> sessions;        // by username
+    private final ScheduledExecutorService timer;       // logs out the users at the end of the grace window
+
+    SessionManager() {
+        this.random = new SecureRandom();
+        byte[] secret = new byte[32];
+        this.random.nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(this.key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.sessions = new ConcurrentHashMap<>();
+
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "session-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        this.timer = Executors.unconfigurableScheduledExecutorService(timer);
+        Metrics.gauge("sessions.open", this.sessions::size);
+    }
+
+    /**
+     * Session of an online user
+     */
+    private static class Session {
+        private final String username;
+        private final String token;
+        private Attachment attachment;          // connection of the session, null during the grace window
+        private ScheduledFuture<?> expiration;  // logout at the end of the grace window, null if connected
+
+        private Session(String username, String token, Attachment attachment) {
+            this.username = username;
+            this.token = token;
+            this.attachment = attachment;
+            this.expiration = null;
+        }
+    }
+
+    /**
+     * Called at login, it replaces the previous session of the user
+     *
+     * @param username user logged in
+     * @param attachment of the connection of the user
+     *
+     * @return token to resume the session
+     */
+    String open(String username, Attachment attachment) {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String payload = encoder.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." +
+                encoder.encodeToString(nonce);
+        String token = payload + "." + encoder.encodeToString(this.sign(payload));
+
+        Session old = sessions.put(username, new Session(username, token, attachment));
+        if (old != null) {
+            synchronized (old) {
+                if (old.expiration != null) old.expiration.cancel(false);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Called at logout, the token can't be used anymore
+     *
+     * @param username user logged out
+     */
+    void close(String username) {
+        Session session = sessions.remove(username);
+        if (session == null) return;
+        synchronized (session) {
+            if (session.expiration != null) session.expiration.cancel(false);
+        }
+    }
+
+    /**
+     * Attaches a connection to the session of the token: the previous connection of the session,
+     * if still open, is no longer associated to the user
+     *
+     * @param token received at login
+     * @param attachment of the new connection
+     *
+     * @return the user of the session, null if the token is not valid or the session has ended
+     */
+    String resume(String token, Attachment attachment) {
+        String username = this.verify(token);
+        Session session = username == null ? null : sessions.get(username);
+        if (session == null || !MessageDigest.isEqual(
+                session.token.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII))) {
+            resumeFailed.increment();
+            return null;
+        }
+
+        synchronized (session) {
+            if (sessions.get(username) != session) {
+                // logged out in the meantime
+                resumeFailed.increment();
+                return null;
+            }
+            if (session.expiration != null) {
+                session.expiration.cancel(false);
+                session.expiration = null;
+            }
+            // the old connection must not log the user out when it is closed
+            if (session.attachment != null && session.attachment != attachment)
+                session.attachment.setUsername(null);
+            session.attachment = attachment;
+            attachment.setUsername(username);
+        }
+        resumed.increment();
+        return username;
+    }
+
+    /**
+     * Called when the connection of a user is lost: the user is logged out at the end of the grace window,
+     * unless the session is resumed
+     *
+     * @param username user of the connection
+     * @param attachment of the connection lost
+     * @param logout logs the user out, executed by the timer thread
+     *
+     * @return false if there is no grace window and the user has to be logged out now
+     */
+    boolean detach(String username, Attachment attachment, Runnable logout) {
+        Session session = sessions.get(username);
+        if (session == null || ServerConfig.SESSION_GRACE <= 0) {
+            this.close(username);
+            return false;
+        }
+        synchronized (session) {
+            if (session.attachment != attachment)
+                return true; // already resumed by another connection
+            session.attachment = null;
+            session.expiration = timer.schedule(() -> this.expire(session, logout),
+                    ServerConfig.SESSION_GRACE, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Called by a login with the password of a user whose connection has been lost:
+     * the session in the grace window is ended without logging the user out
+     *
+     * @param username user
+     *
+     * @return true if the user was in the grace window and is still ONLINE,
+     *         false if the user has to be logged in normally
+     */
+    boolean reclaim(String username) {
+        Session session = sessions.get(username);
+        if (session == null) return false;
+        synchronized (session) {
+            if (session.attachment != null || sessions.get(username) != session)
+                return false;
+            session.expiration.cancel(false);
+            sessions.remove(username, session);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the connection of the user has been lost and the user is in the grace window
+     */
+    boolean isDetached(String username) {
+        Session session = sessions.get(username);
+        if (session == null) return false;
+        synchronized (session) {
+            return session.attachment == null;
+        }
+    }
+
+    /**
+     * Stops the timer, called at shutdown: the sessions in the grace window don't expire anymore
+     */
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * End of the grace window of a session
+     */
+    private void expire(Session session, Runnable logout) {
+        synchronized (session) {
+            // resumed or closed in the meantime
+            if (session.attachment != null || !sessions.remove(session.username, session))
+                return;
+        }
+        expired.increment();
+        logout.run();
+    }
+
+    /**
+     * @param token received from a client
+     *
+     * @return the username in the token, null if the signature is not valid
+     */
+    private String verify(String token) {
+        int last = token.lastIndexOf('.');
+        int first = token.indexOf('.');
+        if (first <= 0 || last == first) return null;
+        try {
+            String payload = token.substring(0, last);
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(last + 1));
+            if (!MessageDigest.isEqual(this.sign(payload), signature))
+                return null;
+            return new String(Base64.getUrlDecoder().decode(token.substring(0, first)), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null; // not base64
+        }
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -4,6 +4,7 @@ import com.data.*;
 import com.exceptions.*;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -14,6 +15,18 @@ import java.util.Map;
  */
 public interface TCPOperations {
 
+    /**
+     * Operations executed together by executeBatch
+     */
+    interface Batch {
+        /**
+         * @return true if the batch has been completed, false if it has been aborted
+         *
+         * @throws IOException if there are errors in saving the data
+         */
+        boolean execute() throws IOException;
+    }
+
     /**
      * Operation that allows the user to log-in
      *
@@ -27,6 +40,17 @@ public interface TCPOperations {
     void login(String username, String password)
             throws UserNotExistException, AlreadyLoggedInException, WrongPasswordException;
 
+    /**
+     * Checks the password of a user, without logging in
+     *
+     * @param username of the user
+     * @param password of the user
+     *
+     * @throws UserNotExistException if the user doesn't exist
+     * @throws WrongPasswordException if the password is wrong
+     */
+    void checkPassword(String username, String password) throws UserNotExistException, WrongPasswordException;
+
     /**
      * Operation that allows the user to log-out
      *
@@ -114,11 +138,12 @@ public interface TCPOperations {
      * @throws ProjectNotExistException if the project doesn't exist
      * @throws UnauthorizedUserException if the user does not have the necessary permissions
      * @throws CardNotExistException if the card doesn't exist
+     * @throws IOException if the cards of the project can't be loaded
      *
      * @return card of the project with the name cardName, without its movement history
      */
     Card showCard(String projectName, String cardName, String whoRequest)
-            throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException;
+            throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException, IOException;
 
     /**
      * Add a card to the project
@@ -165,11 +190,12 @@ public interface TCPOperations {
      * @throws ProjectNotExistException if the project doesn't exist
      * @throws UnauthorizedUserException if the user does not have the necessary permissions
      * @throws CardNotExistException if the card doesn't exist
+     * @throws IOException if the cards of the project can't be loaded
      *
      * @return lista dei movimenti della card
      */
     List<Movement> getCardHistory(String projectName, String cardName, String whoRequest)
-            throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException;
+            throws ProjectNotExistException, UnauthorizedUserException, CardNotExistException, IOException;
 
     /**
      * Delete the project
@@ -180,10 +206,26 @@ public interface TCPOperations {
      * @throws ProjectNotExistException if the project doesn't exist
      * @throws UnauthorizedUserException if the user does not have the necessary permissions
      * @throws ProjectNotCancelableException if not all cards are in the DONE state
+     * @throws IOException if there are errors in saving the cancellation
      *
      */
     void cancelProject(String projectName, String whoRequest)
-            throws ProjectNotExistException, UnauthorizedUserException, ProjectNotCancelableException;
+            throws ProjectNotExistException, UnauthorizedUserException, ProjectNotCancelableException, IOException;
+
+    /**
+     * Executes several operations holding the locks of the projects involved:
+     * the projects modified are saved once at the end, instead of after every operation
+     *
+     * @param projectNames names of the projects that the operations can use, null for all the projects;
+     *                     the projects created during the batch can't be used by it
+     * @param atomic if true and the batch is aborted, the projects are brought back to their initial state
+     * @param batch operations to execute, on the calling thread
+     *
+     * @throws IOException if there are errors in saving the projects
+     *
+     * @return the result of the batch
+     */
+    boolean executeBatch(Collection<String> projectNames, boolean atomic, Batch batch) throws IOException;
 
     /**
      * Get the status of all users
@@ -202,4 +244,11 @@ public interface TCPOperations {
      * @return multicast address of the project
      */
     String getProjectChatAddress(String projectName) throws ProjectNotExistException;
+
+    /**
+     * Saves on disk the changes not saved yet, called at shutdown after the last request
+     *
+     * @throws IOException if there are errors in saving the data
+     */
+    void flush() throws IOException;
 }
@@ -0,0 +1,28 @@
+package com.server.TCPOperations;
+
+import com.utils.Histogram;
+import com.utils.Metrics;
+import com.utils.ResponseMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Davide Chen
+ *
+ * Records the execution time of every command (nanoseconds) in the histogram "command.<name>"
+ */
+class TimingInterceptor implements CommandInterceptor {
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();   // per command
+
+    @Override
+    public ResponseMessage intercept(CommandContext context, CommandHandler next) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return next.handle(context);
+        } finally {
+            this.histograms.computeIfAbsent(context.getCommand(), command -> Metrics.histogram("command." + command))
+                    .record(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.server.TCPOperations;
+
+import com.data.Project;
+import com.server.ServerConfig;
+import com.utils.Histogram;
+import com.utils.Metrics;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Saves the projects modified in background (ServerConfig.WRITE_BEHIND_INTERVAL > 0):
+ * the operations only mark the project and the cards that they modify, then a flusher thread
+ * writes each of them once, with its state at that time, however many times it has been modified.
+ * A change is written at most WRITE_BEHIND_INTERVAL ms after it has been made, or earlier if
+ * WRITE_BEHIND_MAX_DIRTY projects and cards are waiting; if the flusher falls behind,
+ * the operations wait before their response until it catches up (backpressure).
+ * A project that can't be written stays dirty and is written again at the next round
+ */
+class WriteBehind {
+    /**
+     * Writes a project with some of its cards
+     */
+    interface Store {
+        void store(Project project, Set<String> cardNames) throws IOException;
+    }
+
+    private static final LongAdder marked = Metrics.counter("writebehind.marked");
+    private static final LongAdder written = Metrics.counter("writebehind.written");
+    private static final LongAdder throttled = Metrics.counter("writebehind.throttled");
+    private static final LongAdder failures = Metrics.counter("writebehind.failures");
+    private static final Histogram staleness = Metrics.histogram("writebehind.staleness");
+    private static final Histogram flushNanos = Metrics.histogram("writebehind.flush");
+
+    private final Store store;
+    private final GroupCommit commit;           // forces the files written by the flusher
+    private final Thread flusher;
+    private Map<Project, Set<String>> dirty;    // projects (and names of their cards) to write
+    private Map<Project, Set<String>> writing;  // projects being written by the flusher
+    private int entities;                       // projects and cards in dirty
+    private long oldest;                        // System.nanoTime() of the first change in dirty
+    private boolean closed;
+    private IOException failure;                // of the last round, null if it has written everything
+
+    WriteBehind(Store store, GroupCommit commit) {
+        this.store = store;
+        this.commit = commit;
+        this.dirty = new IdentityHashMap<>();
+        this.writing = Collections.emptyMap();
+        this.entities = 0;
+        this.oldest = 0;
+        this.closed = false;
+        this.failure = null;
+        Metrics.gauge("writebehind.dirty", () -> {
+            synchronized (this) {
+                return this.entities;
+            }
+        });
+
+        this.flusher = new Thread(this::flushLoop, "write-behind");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Marks a project and some of its cards to be written
+     *
+     * @param project modified, its lock must be held
+     * @param cardNames names of the cards modified
+     *
+     * @throws IOException if the write-behind has been closed, the change would never be written
+     */
+    synchronized void mark(Project project, Collection<String> cardNames) throws IOException {
+        if (closed)
+            throw new IOException("Write-behind closed, the change can't be saved");
+        if (dirty.isEmpty()) {
+            oldest = System.nanoTime();
+            this.notifyAll();
+        }
+        this.merge(project, cardNames);
+        marked.increment();
+        if (entities >= ServerConfig.WRITE_BEHIND_MAX_DIRTY)
+            this.notifyAll();
+    }
+
+    /**
+     * @return true if the project has changes not written yet
+     */
+    synchronized boolean isDirty(Project project) {
+        return dirty.containsKey(project) || writing.containsKey(project);
+    }
+
+    /**
+     * Waits while too many changes are waiting to be written.
+     * It must be called without holding the locks of the Database, the flusher needs them
+     *
+     * @throws IOException if interrupted while waiting
+     */
+    synchronized void awaitCapacity() throws IOException {
+        if (entities < ServerConfig.WRITE_BEHIND_MAX_DIRTY) return;
+        throttled.increment();
+        while (entities >= ServerConfig.WRITE_BEHIND_MAX_DIRTY && !closed) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the write-behind", e);
+            }
+        }
+    }
+
+    /**
+     * Writes all the changes still waiting and stops the flusher, called at shutdown after the last change
+     *
+     * @throws IOException if some changes could not be written
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            this.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the write-behind", e);
+        }
+        synchronized (this) {
+            if (!dirty.isEmpty())
+                throw new IOException(entities + " projects and cards not written", failure);
+        }
+    }
+
+    private void flushLoop() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(ServerConfig.WRITE_BEHIND_INTERVAL);
+        while (true) {
+            Map<Project, Set<String>> toWrite;
+            long since;
+            synchronized (this) {
+                try {
+                    while (!closed) {
+                        if (dirty.isEmpty()) {
+                            this.wait();
+                            continue;
+                        }
+                        long remaining = oldest + interval - System.nanoTime();
+                        if (remaining <= 0 || entities >= ServerConfig.WRITE_BEHIND_MAX_DIRTY)
+                            break;
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (dirty.isEmpty())
+                    return;         // closed and nothing left
+                toWrite = dirty;
+                writing = toWrite;
+                since = oldest;
+                dirty = new IdentityHashMap<>();
+                entities = 0;
+                // the operations waiting for capacity can go on while these changes are written
+                this.notifyAll();
+            }
+
+            long start = System.nanoTime();
+            Map<Project, Set<String>> failed = new IdentityHashMap<>();
+            IOException error = null;
+            for (Map.Entry<Project, Set<String>> entry : toWrite.entrySet()) {
+                try {
+                    store.store(entry.getKey(), entry.getValue());
+                    written.add(1 + entry.getValue().size());
+                } catch (IOException e) {
+                    failed.put(entry.getKey(), entry.getValue());
+                    error = e;
+                }
+            }
+            try {
+                commit.await();
+            } catch (IOException e) {
+                // the files written could be lost, the whole round is written again
+                failed = toWrite;
+                error = e;
+            }
+
+            synchronized (this) {
+                if (!failed.isEmpty()) {
+                    failures.add(failed.size());
+                    System.err.format("Write-behind: %d projects not written, retrying in %d ms: %s\n",
+                            failed.size(), ServerConfig.WRITE_BEHIND_INTERVAL, error);
+                    failure = error;
+                    // they stay dirty (the cards can't be evicted), the next round starts an interval from now
+                    if (dirty.isEmpty())
+                        oldest = System.nanoTime();
+                    for (Map.Entry<Project, Set<String>> entry : failed.entrySet())
+                        this.merge(entry.getKey(), entry.getValue());
+                } else {
+                    failure = null;
+                }
+                writing = Collections.emptyMap();
+                // at shutdown a failed round is not retried, close() reports it
+                if (closed && !failed.isEmpty())
+                    return;
+            }
+            long end = System.nanoTime();
+            flushNanos.record(end - start);
+            staleness.record(end - since);
+        }
+    }
+
+    /**
+     * Adds a project and some of its cards to dirty, the lock of this must be held
+     */
+    private void merge(Project project, Collection<String> cardNames) {
+        Set<String> cards = dirty.get(project);
+        if (cards == null) {
+            cards = new HashSet<>();
+            dirty.put(project, cards);
+            entities++;
+        }
+        for (String cardName : cardNames) {
+            if (cards.add(cardName))
+                entities++;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.utils;
+
+import com.CommunicationProtocol;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Davide Chen
+ *
+ * Compact binary encoding of the messages:
+ * - request:  id (varint), opcode (1 byte), number of arguments (varint), arguments (strings),
+ *             only for BATCH_CMD the number of sub-requests (varint) and the sub-requests
+ * - response: id (varint), status code (varint), body, second body and session token (nodes),
+ *             number of sub-responses + 1 (varint, 0 if not a batch) and the sub-responses
+ * A string is its length in bytes (varint) followed by the UTF-8 bytes.
+ * A node is a tag byte followed by its value: integers are zigzag varints, doubles 8 bytes,
+ * arrays and objects the number of elements followed by the elements (objects: name and node).
+ * Varints are unsigned LEB128: 7 bits per byte, the high bit set if more bytes follow
+ */
+public class BinaryCodec implements MessageCodec {
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    // the opcode of a command is its index, new commands must be added at the end
+    private static final String[] COMMANDS = {
+            CommunicationProtocol.LOGIN_CMD,
+            CommunicationProtocol.LOGOUT_CMD,
+            CommunicationProtocol.LIST_PROJECTS_CMD,
+            CommunicationProtocol.CREATE_PROJECT_CMD,
+            CommunicationProtocol.ADD_MEMBER_CMD,
+            CommunicationProtocol.SHOW_MEMBERS_CMD,
+            CommunicationProtocol.SHOW_CARDS_CMD,
+            CommunicationProtocol.SHOW_CARD_CMD,
+            CommunicationProtocol.ADD_CARD_CMD,
+            CommunicationProtocol.MOVE_CARD_CMD,
+            CommunicationProtocol.CARD_HISTORY_CMD,
+            CommunicationProtocol.CANCEL_PROJECT_CMD,
+            CommunicationProtocol.EXIT_CMD,
+            CommunicationProtocol.BATCH_CMD,
+            CommunicationProtocol.RESUME_CMD
+    };
+    private static final int BATCH_OPCODE = 13;            // index of BATCH_CMD
+    private static final Map<String, Integer> OPCODES = new HashMap<>();
+
+    // tags of the nodes
+    private static final int ABSENT = 0;    // no body
+    private static final int NULL = 1;
+    private static final int FALSE = 2;
+    private static final int TRUE = 3;
+    private static final int INTEGER = 4;
+    private static final int DOUBLE = 5;
+    private static final int STRING = 6;
+    private static final int ARRAY = 7;
+    private static final int OBJECT = 8;
+    private static final int MAX_DEPTH = 64; // max nesting of the nodes and of the batches received
+
+    static {
+        for (int i = 0; i < COMMANDS.length; i++)
+            OPCODES.put(COMMANDS[i], i);
+    }
+
+    private BinaryCodec() {}
+
+    @Override
+    public void encodeRequest(RequestMessage request, OutputStream out) throws IOException {
+        Integer opcode = OPCODES.get(request.getCommand());
+        if (opcode == null)
+            throw new IOException("Command without opcode: " + request.getCommand());
+
+        writeVarint(out, request.getId());
+        out.write(opcode);
+        writeVarint(out, request.getArguments().size());
+        for (String argument : request.getArguments())
+            writeString(out, argument);
+
+        if (opcode == BATCH_OPCODE) {
+            List<RequestMessage> requests = request.getRequests();
+            writeVarint(out, requests.size());
+            for (RequestMessage subRequest : requests)
+                this.encodeRequest(subRequest, out);
+        }
+    }
+
+    @Override
+    public RequestMessage decodeRequest(ByteBuffer buffer) throws IOException {
+        return this.decodeRequest(buffer, 0);
+    }
+
+    private RequestMessage decodeRequest(ByteBuffer buffer, int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("Batch nested too deeply");
+        try {
+            long id = readVarint(buffer);
+            int opcode = buffer.get() & 0xFF;
+            if (opcode >= COMMANDS.length)
+                throw new IOException("Unknown opcode: " + opcode);
+
+            int size = (int) readVarint(buffer);
+            if (size < 0 || size > buffer.remaining())
+                throw new IOException("Invalid number of arguments: " + size);
+            String[] arguments = new String[size];
+            for (int i = 0; i < size; i++)
+                arguments[i] = readString(buffer);
+
+            RequestMessage request;
+            if (opcode == BATCH_OPCODE) {
+                long count = readVarint(buffer);
+                if (count < 0 || count > buffer.remaining())
+                    throw new IOException("Invalid number of requests: " + count);
+                List<RequestMessage> requests = new ArrayList<>((int) count);
+                for (long i = 0; i < count; i++)
+                    requests.add(this.decodeRequest(buffer, depth + 1));
+                request = new RequestMessage(COMMANDS[opcode], requests, arguments);
+            } else {
+                request = new RequestMessage(COMMANDS[opcode], arguments);
+            }
+            request.setId(id);
+            return request;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated request", e);
+        }
+    }
+
+    @Override
+    public void encodeResponse(ResponseMessage response, OutputStream out) throws IOException {
+        writeVarint(out, response.getId());
+        writeVarint(out, response.getStatusCode());
+        writeNode(out, response.getResponseBody());
+        writeNode(out, response.getResponseBody2());
+        String sessionToken = response.getSessionToken();
+        writeNode(out, sessionToken == null ? null : TextNode.valueOf(sessionToken));
+
+        List<ResponseMessage> responses = response.getResponses();
+        if (responses == null) {
+            writeVarint(out, 0);
+        } else {
+            writeVarint(out, responses.size() + 1L);
+            for (ResponseMessage subResponse : responses)
+                this.encodeResponse(subResponse, out);
+        }
+    }
+
+    @Override
+    public ResponseMessage decodeResponse(ByteBuffer buffer) throws IOException {
+        return this.decodeResponse(buffer, 0);
+    }
+
+    private ResponseMessage decodeResponse(ByteBuffer buffer, int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("Batch nested too deeply");
+        try {
+            long id = readVarint(buffer);
+            int statusCode = (int) readVarint(buffer);
+            JsonNode responseBody = readNode(buffer, 0);
+            JsonNode responseBody2 = readNode(buffer, 0);
+            JsonNode sessionToken = readNode(buffer, 0);
+
+            ResponseMessage response = new ResponseMessage(statusCode, responseBody, responseBody2);
+            response.setId(id);
+            if (sessionToken != null)
+                response.setSessionToken(sessionToken.asText());
+
+            long count = readVarint(buffer);
+            if (count < 0 || count - 1 > buffer.remaining())
+                throw new IOException("Invalid number of responses: " + count);
+            if (count > 0) {
+                List<ResponseMessage> responses = new ArrayList<>((int) count - 1);
+                for (long i = 1; i < count; i++)
+                    responses.add(this.decodeResponse(buffer, depth + 1));
+                response.setResponses(responses);
+            }
+            return response;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated response", e);
+        }
+    }
+
+    private static void writeNode(OutputStream out, JsonNode node) throws IOException {
+        if (node == null) {
+            out.write(ABSENT);
+        } else if (node.isNull()) {
+            out.write(NULL);
+        } else if (node.isBoolean()) {
+            out.write(node.booleanValue() ? TRUE : FALSE);
+        } else if (node.isIntegralNumber() && node.canConvertToLong()) {
+            out.write(INTEGER);
+            long value = node.longValue();
+            writeVarint(out, (value << 1) ^ (value >> 63)); // zigzag, small negative numbers stay short
+        } else if (node.isNumber()) {
+            out.write(DOUBLE);
+            long bits = Double.doubleToLongBits(node.doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int) (bits >>> shift));
+        } else if (node.isArray()) {
+            out.write(ARRAY);
+            writeVarint(out, node.size());
+            for (JsonNode element : node)
+                writeNode(out, element);
+        } else if (node.isObject()) {
+            out.write(OBJECT);
+            writeVarint(out, node.size());
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                writeString(out, field.getKey());
+                writeNode(out, field.getValue());
+            }
+        } else {
+            // text and any other value
+            out.write(STRING);
+            writeString(out, node.asText());
+        }
+    }
+
+    private static JsonNode readNode(ByteBuffer buffer, int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("Body nested too deeply");
+
+        JsonNodeFactory factory = JsonNodeFactory.instance;
+        int tag = buffer.get();
+        switch (tag) {
+            case ABSENT:
+                return null;
+            case NULL:
+                return factory.nullNode();
+            case FALSE:
+                return factory.booleanNode(false);
+            case TRUE:
+                return factory.booleanNode(true);
+            case INTEGER:
+                long zigzag = readVarint(buffer);
+                long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                return value == (int) value ? factory.numberNode((int) value) : factory.numberNode(value);
+            case DOUBLE:
+                return factory.numberNode(buffer.getDouble());
+            case STRING:
+                return factory.textNode(readString(buffer));
+            case ARRAY:
+                ArrayNode array = factory.arrayNode();
+                long elements = readVarint(buffer);
+                for (long i = 0; i < elements; i++)
+                    array.add(readNode(buffer, depth + 1));
+                return array;
+            case OBJECT:
+                ObjectNode object = factory.objectNode();
+                long fields = readVarint(buffer);
+                for (long i = 0; i < fields; i++) {
+                    String name = readString(buffer);
+                    object.set(name, readNode(buffer, depth + 1));
+                }
+                return object;
+            default:
+                throw new IOException("Unknown node tag: " + tag);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining())
+            throw new IOException("Invalid string length: " + length);
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    (int) length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + (int) length);
+            return value;
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
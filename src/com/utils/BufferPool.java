@@ -0,0 +1,163 @@
+package com.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Davide Chen
+ *
+ * Pool of direct ByteBuffers used for the network I/O, shared by all the threads.
+ * The buffers are grouped in size classes (powers of two from MIN_SIZE to MAX_SIZE):
+ * when a class is empty a slab of direct memory is allocated and sliced in buffers of that class.
+ * Bigger requests are served with a temporary buffer, outside the pool.
+ *
+ * With -Dworth.buffers.leakDetection=true the pool records where every buffer has been acquired,
+ * so that the buffers never released can be reported
+ */
+public abstract class BufferPool {
+    public static final int MIN_SIZE = 512;                 // capacity of the smallest class
+    public static final int MAX_SIZE = 1024 * 1024;         // capacity of the largest class
+    private static final int SLAB_SIZE = 256 * 1024;        // bytes allocated at once for a class
+    private static final int MAX_FREE_BYTES = 8 * 1024 * 1024;  // free bytes kept by each class
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("worth.buffers.leakDetection");
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    private static final List<Queue<ByteBuffer>> free = newFreeLists();
+    private static final AtomicInteger[] freeCount = new AtomicInteger[CLASSES];
+    private static final AtomicLong outstanding = new AtomicLong(0);
+    // buffers not released yet, with the stack trace of their acquisition (only with leak detection)
+    private static final Map<ByteBuffer, Throwable> acquired =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private static final LongAdder hits = Metrics.counter("buffers.hits");
+    private static final LongAdder misses = Metrics.counter("buffers.misses");
+    private static final LongAdder unpooled = Metrics.counter("buffers.unpooled");
+    private static final LongAdder slabBytes = Metrics.counter("buffers.slab_bytes");
+    private static final LongAdder invalidReleases = Metrics.counter("buffers.invalid_releases");
+
+    static {
+        for (int i = 0; i < CLASSES; i++)
+            freeCount[i] = new AtomicInteger(0);
+        Metrics.gauge("buffers.outstanding", outstanding::get);
+    }
+
+    private static List<Queue<ByteBuffer>> newFreeLists() {
+        List<Queue<ByteBuffer>> lists = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++)
+            lists.add(new ConcurrentLinkedQueue<>());
+        return lists;
+    }
+
+    /**
+     * @param capacity minimum capacity of the buffer
+     *
+     * @return a cleared buffer with at least the requested capacity,
+     *         it must be given back with release() when it is no longer used
+     */
+    public static ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer;
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass == -1) {
+            // too big for the pool
+            unpooled.increment();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            buffer = free.get(sizeClass).poll();
+            if (buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+                hits.increment();
+            } else {
+                misses.increment();
+                buffer = refill(sizeClass);
+            }
+            buffer.clear();
+        }
+
+        outstanding.incrementAndGet();
+        if (LEAK_DETECTION)
+            acquired.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool, the buffer must not be used anymore
+     *
+     * @param buffer obtained by acquire(), null is ignored
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        if (LEAK_DETECTION && acquired.remove(buffer) == null) {
+            // released twice or not obtained by the pool
+            invalidReleases.increment();
+            new Throwable("Invalid release of a buffer of " + buffer.capacity() + " bytes").printStackTrace();
+            return;
+        }
+        outstanding.decrementAndGet();
+
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass == -1 || (MIN_SIZE << sizeClass) != buffer.capacity() || !buffer.isDirect())
+            return; // not pooled, left to the garbage collector
+        if (freeCount[sizeClass].incrementAndGet() * (long) buffer.capacity() > MAX_FREE_BYTES) {
+            freeCount[sizeClass].decrementAndGet();
+            return; // enough free buffers of this class
+        }
+        free.get(sizeClass).add(buffer);
+    }
+
+    /**
+     * Prints the buffers acquired and never released
+     */
+    public static void reportLeaks() {
+        System.out.println("Buffers not released: " + outstanding.get());
+        if (!LEAK_DETECTION) return;
+        synchronized (acquired) {
+            for (Throwable trace : acquired.values())
+                trace.printStackTrace(System.out);
+        }
+    }
+
+    /**
+     * @param capacity requested
+     *
+     * @return index of the smallest class with at least that capacity, -1 if it's too big
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity > MAX_SIZE) return -1;
+        if (capacity <= MIN_SIZE) return 0;
+        return Integer.SIZE - Integer.numberOfLeadingZeros((capacity - 1) / MIN_SIZE);
+    }
+
+    /**
+     * Allocates a new slab for the class and slices it into buffers
+     *
+     * @return one of the new buffers, the others are added to the free list
+     */
+    private static ByteBuffer refill(int sizeClass) {
+        int size = MIN_SIZE << sizeClass;
+        int count = Math.max(1, SLAB_SIZE / size);
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+        slabBytes.add(size * count);
+
+        ByteBuffer first = null;
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * size).position(i * size);
+            ByteBuffer buffer = slab.slice();
+            if (first == null) {
+                first = buffer;
+            } else {
+                freeCount[sizeClass].incrementAndGet();
+                free.get(sizeClass).add(buffer);
+            }
+        }
+        return first;
+    }
+}
@@ -73,6 +73,9 @@ public abstract class ErrorMSG {
 
     public static final String NOT_LOGGED = "Sorry, but seems that you're not logged yet.";
 
+    public static final String THROTTLED = "Sorry, the server is busy and the operation has not been applied.\n" +
+            "Please try again later";
+
     public static final String NOT_LOGGED_AS = "Sorry, but seems that you're not logged as ";
 
     public static final String WRONG_COMMAND = "wrong command, please try again...";
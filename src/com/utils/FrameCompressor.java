@@ -0,0 +1,146 @@
+package com.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author Davide Chen
+ *
+ * Compression of the frames of a connection (CommunicationProtocol.FEATURE_COMPRESSION).
+ * A compressed frame has the COMPRESSED bit set in its length, its message is the length
+ * of the original message followed by the original message compressed with Deflater.
+ * Only the messages of at least threshold bytes are compressed, and only if they get smaller
+ */
+public class FrameCompressor {
+    public static final int COMPRESSED = 0x80000000;    // bit of the frame length
+    private static final LongAdder bytesIn = Metrics.counter("compression.bytes_in");
+    private static final LongAdder bytesOut = Metrics.counter("compression.bytes_out");
+    private static final LongAdder skipped = Metrics.counter("compression.skipped");
+    private static final Histogram nanos = Metrics.histogram("compression.nanos");
+    private final int level;            // Deflater level
+    private final int threshold;        // min size (in bytes) of the messages compressed
+    private Deflater deflater;          // created the first time it is needed
+    private Inflater inflater;          // created the first time it is needed
+    private boolean ended;
+
+    static {
+        // size of the compressed messages with respect to the original ones
+        Metrics.gauge("compression.ratio_percent", () -> {
+            long in = bytesIn.sum();
+            return in == 0 ? 0 : bytesOut.sum() * 100 / in;
+        });
+    }
+
+    /**
+     * @param level of compression (Deflater.BEST_SPEED ... Deflater.BEST_COMPRESSION)
+     * @param threshold min size (in bytes) of the messages compressed
+     */
+    public FrameCompressor(int level, int threshold) {
+        this.level = level;
+        this.threshold = threshold;
+        this.ended = false;
+    }
+
+    /**
+     * Compressor that only decompresses the frames received
+     */
+    public FrameCompressor() {
+        this(Deflater.DEFAULT_COMPRESSION, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param frame pooled buffer with length and message, ready for writing
+     *
+     * @return the compressed frame, the original buffer is given back to the pool;
+     *         the original frame if the message is too short or it doesn't get smaller
+     */
+    public synchronized ByteBuffer compress(ByteBuffer frame) {
+        int messageLength = frame.remaining() - Integer.BYTES;
+        if (messageLength < threshold || ended)
+            return frame;
+
+        long start = System.nanoTime();
+        if (deflater == null)
+            deflater = new Deflater(level);
+        ByteBuffer message = frame.duplicate();
+        message.position(message.position() + Integer.BYTES);
+        deflater.setInput(message);
+        deflater.finish();
+
+        // the compressed frame can't be bigger than the original one
+        ByteBuffer compressed = BufferPool.acquire(frame.remaining());
+        compressed.limit(frame.remaining());
+        compressed.position(2 * Integer.BYTES);
+        while (!deflater.finished() && compressed.hasRemaining())
+            deflater.deflate(compressed);
+        boolean smaller = deflater.finished();
+        deflater.reset();
+        nanos.record(System.nanoTime() - start);
+
+        if (!smaller) {
+            skipped.increment();
+            BufferPool.release(compressed);
+            return frame;
+        }
+        bytesIn.add(messageLength);
+        bytesOut.add(compressed.position() - Integer.BYTES);
+
+        compressed.putInt(0, (compressed.position() - Integer.BYTES) | COMPRESSED);
+        compressed.putInt(Integer.BYTES, messageLength);
+        compressed.flip();
+        BufferPool.release(frame);
+        return compressed;
+    }
+
+    /**
+     * @param message of a compressed frame (without the frame length), ready for reading
+     *
+     * @return pooled buffer with the original message, ready for reading
+     *
+     * @throws IOException if the message is not valid
+     */
+    public synchronized ByteBuffer decompress(ByteBuffer message) throws IOException {
+        if (message.remaining() < Integer.BYTES || ended)
+            throw new IOException("Invalid compressed message");
+        int length = message.getInt();
+        if (length < 0)
+            throw new IOException("Invalid message length: " + length);
+
+        if (inflater == null)
+            inflater = new Inflater();
+        ByteBuffer original = BufferPool.acquire(length);
+        original.limit(length);
+        inflater.setInput(message);
+        try {
+            while (original.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(original) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+        } catch (DataFormatException e) {
+            BufferPool.release(original);
+            throw new IOException(e);
+        } finally {
+            inflater.reset();
+        }
+
+        if (original.hasRemaining()) {
+            BufferPool.release(original);
+            throw new IOException("Truncated compressed message");
+        }
+        original.flip();
+        return original;
+    }
+
+    /**
+     * Frees the native memory of the compressor, the frames are no longer compressed
+     */
+    public synchronized void end() {
+        ended = true;
+        if (deflater != null) deflater.end();
+        if (inflater != null) inflater.end();
+    }
+}
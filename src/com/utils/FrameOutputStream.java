@@ -0,0 +1,69 @@
+package com.utils;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Davide Chen
+ *
+ * Stream that writes a frame (length + message) directly into a pooled buffer,
+ * the buffer is replaced by a bigger one when it is full.
+ * The message is written by the codec, the length is filled in by toFrame()
+ */
+public class FrameOutputStream extends OutputStream {
+    private static final int INITIAL_SIZE = 512;    // initial capacity of the buffer
+    private ByteBuffer buffer;                      // frame being written (pooled), null once returned
+
+    public FrameOutputStream() {
+        this.buffer = BufferPool.acquire(INITIAL_SIZE);
+        this.buffer.position(Integer.BYTES); // room for the length
+    }
+
+    @Override
+    public void write(int b) {
+        this.ensureCapacity(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        this.ensureCapacity(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * The codecs (Jackson) close the stream at the end of a message, the buffer must remain available
+     */
+    @Override
+    public void close() {}
+
+    /**
+     * @return the buffer with the frame, ready for writing on a channel.
+     *         The buffer must be given back to the pool, the stream must not be used anymore
+     */
+    public ByteBuffer toFrame() {
+        ByteBuffer frame = this.buffer;
+        this.buffer = null;
+        frame.putInt(0, frame.position() - Integer.BYTES);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Gives the buffer back to the pool if the frame has not been completed
+     */
+    public void release() {
+        BufferPool.release(this.buffer);
+        this.buffer = null;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer.remaining() >= length) return;
+
+        ByteBuffer bigger = BufferPool.acquire(Math.max(buffer.capacity() * 2, buffer.position() + length));
+        buffer.flip();
+        bigger.put(buffer);
+        BufferPool.release(buffer);
+        buffer = bigger;
+    }
+}
@@ -0,0 +1,114 @@
+package com.utils;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Davide Chen
+ *
+ * Original encoding of the messages: JSON text (UTF-8), written without indentation.
+ * The messages received can't nest more than MAX_DEPTH objects and arrays (the batches are recursive)
+ */
+public class JsonCodec implements MessageCodec {
+    public static final JsonCodec INSTANCE = new JsonCodec();
+    private static final int MAX_DEPTH = 64;    // max nesting of the objects and arrays received
+    private final ObjectMapper mapper;          // mapper used for Jackson serialization / deserialization
+    private final ObjectReader requestReader;
+    private final ObjectReader responseReader;
+
+    private JsonCodec() {
+        this.mapper = new MyObjectMapper();
+        this.mapper.disable(SerializationFeature.INDENT_OUTPUT);
+        this.requestReader = mapper.readerFor(RequestMessage.class);
+        this.responseReader = mapper.readerFor(ResponseMessage.class);
+    }
+
+    @Override
+    public void encodeRequest(RequestMessage request, OutputStream out) throws IOException {
+        mapper.writeValue(out, request);
+    }
+
+    @Override
+    public RequestMessage decodeRequest(ByteBuffer buffer) throws IOException {
+        return read(requestReader, buffer);
+    }
+
+    @Override
+    public void encodeResponse(ResponseMessage response, OutputStream out) throws IOException {
+        mapper.writeValue(out, response);
+    }
+
+    @Override
+    public ResponseMessage decodeResponse(ByteBuffer buffer) throws IOException {
+        return read(responseReader, buffer);
+    }
+
+    /**
+     * Parses the bytes of the buffer, without copying them if the buffer is backed by an array
+     *
+     * @throws IOException if the message is not valid, or it is the JSON null
+     */
+    private <T> T read(ObjectReader reader, ByteBuffer buffer) throws IOException {
+        JsonParser parser = buffer.hasArray() ?
+                mapper.getFactory().createParser(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()) :
+                mapper.getFactory().createParser(new ByteBufferBackedInputStream(buffer));
+        try (JsonParser limited = new DepthLimitedParser(parser)) {
+            T message = reader.readValue(limited);
+            if (message == null)
+                throw new JsonParseException(limited, "Null message");
+            return message;
+        }
+    }
+
+    /**
+     * Fails as soon as the objects and arrays nest more than MAX_DEPTH,
+     * before the recursion of the deserializers can overflow the stack
+     */
+    private static class DepthLimitedParser extends JsonParserDelegate {
+        private int depth;          // objects and arrays open
+
+        private DepthLimitedParser(JsonParser parser) {
+            super(parser);
+            this.depth = 0;
+        }
+
+        @Override
+        public JsonToken nextToken() throws IOException {
+            JsonToken token = super.nextToken();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                if (++depth > MAX_DEPTH)
+                    throw new JsonParseException(this, "Message nested too deeply");
+            } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+            }
+            return token;
+        }
+
+        @Override
+        public JsonToken nextValue() throws IOException {
+            // like JsonParser.nextValue(), through the nextToken() above
+            JsonToken token = this.nextToken();
+            return token == JsonToken.FIELD_NAME ? this.nextToken() : token;
+        }
+
+        @Override
+        public JsonParser skipChildren() throws IOException {
+            // the delegate skips up to the matching end, which closes the object or array
+            JsonToken token = this.currentToken();
+            super.skipChildren();
+            if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY)
+                depth--;
+            return this;
+        }
+    }
+}
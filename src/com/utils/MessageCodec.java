@@ -0,0 +1,29 @@
+package com.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Davide Chen
+ *
+ * Encoding of the messages exchanged on a TCP connection (the message of a frame, without the length).
+ * The codec is chosen when the connection is opened, with the handshake described in CommunicationProtocol.
+ * The messages are written to and read from the network buffers directly, without intermediate strings
+ */
+public interface MessageCodec {
+
+    void encodeRequest(RequestMessage request, OutputStream out) throws IOException;
+
+    /**
+     * @param buffer containing exactly the message, ready for reading
+     */
+    RequestMessage decodeRequest(ByteBuffer buffer) throws IOException;
+
+    void encodeResponse(ResponseMessage response, OutputStream out) throws IOException;
+
+    /**
+     * @param buffer containing exactly the message, ready for reading
+     */
+    ResponseMessage decodeResponse(ByteBuffer buffer) throws IOException;
+}
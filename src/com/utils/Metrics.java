@@ -0,0 +1,62 @@
+package com.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * @author Davide Chen
+ *
+ * Registry of the metrics of the process: counters, gauges and histograms identified by name
+ */
+public abstract class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param name of the counter
+     *
+     * @return the counter, created the first time it is requested
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * @param name of the gauge
+     * @param value function that returns the current value, replaces the previous one
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @param name of the histogram
+     *
+     * @return the histogram, created the first time it is requested
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * @return current value of all the metrics, one per line in alphabetical order
+     */
+    public static String report() {
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+            values.put(entry.getKey(), String.valueOf(entry.getValue().sum()));
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet())
+            values.put(entry.getKey(), String.valueOf(entry.getValue().getAsLong()));
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            values.put(entry.getKey(), entry.getValue().toString());
+
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet())
+            report.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return report.toString();
+    }
+}
@@ -9,15 +9,26 @@ import java.security.NoSuchAlgorithmException;
 /**
  * @author Davide Chen
  *
- * Password encryption manager using SHA3-256
+ * Password encryption manager using SHA3-256.
+ * Each thread reuses its own MessageDigest, the hashes are compared in constant time
  */
 
 public class PasswordManager {
 
-    String ALGORITHM = "SHA3-256"; // algoritmo used
+    private static final String ALGORITHM = "SHA3-256"; // algoritmo used
     // to generate random numbers - thread safe
     private static final Random RANDOM = new SecureRandom();
     private static final int SALT_SIZE = 64; // size in bytes of the salt
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    // MessageDigest.getInstance() is expensive and a digest is not thread safe
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // impossibile avvenga
+        }
+    });
+    private static final Histogram hashNanos = Metrics.histogram("password.hash");
 
 
     /**
@@ -39,16 +50,19 @@ public class PasswordManager {
      * @return hash of the password, in base Hex
      */
     public String hash(String password, String salt) {
-        String digest = "";
-        try {
-            final MessageDigest messageDigest = MessageDigest.getInstance(ALGORITHM);
-            final byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
-            final byte[] saltBytes = salt.getBytes(StandardCharsets.UTF_8);
-            final byte[] allToBeHashed = concat(passwordBytes, saltBytes);
-            final byte[] hashBytes = messageDigest.digest(allToBeHashed);
-            digest = bytesToHex(hashBytes);
-        } catch (NoSuchAlgorithmException ignored) {} // impossibile avvenga
-        return digest;
+        return new String(hexBytes(digest(password, salt)), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return SHA3-256 of the password followed by the salt
+     */
+    private static byte[] digest(String password, String salt) {
+        long start = System.nanoTime();
+        MessageDigest messageDigest = DIGESTS.get();
+        messageDigest.update(password.getBytes(StandardCharsets.UTF_8));
+        byte[] hashBytes = messageDigest.digest(salt.getBytes(StandardCharsets.UTF_8));
+        hashNanos.record(System.nanoTime() - start);
+        return hashBytes;
     }
 
     /**
@@ -60,8 +74,9 @@ public class PasswordManager {
      * @return true if the password matches, false otherwise
      */
     public boolean isExpectedPassword(String password, String salt, String hash) {
-        String generatedHash = hash(password, salt);
-        return hash.equals(generatedHash);
+        byte[] generatedHash = hexBytes(digest(password, salt));
+        // constant time, the comparison doesn't reveal how many characters match
+        return MessageDigest.isEqual(hash.getBytes(StandardCharsets.US_ASCII), generatedHash);
     }
 
     /**
@@ -70,15 +85,21 @@ public class PasswordManager {
      * @return Hex string corresponding to the input bytes
      * */
     private static String bytesToHex(byte[] hash) {
-        StringBuilder hexString = new StringBuilder(2 * hash.length);
-        for (byte b : hash) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
+        return new String(hexBytes(hash), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param bytes to convert to Hex format
+     *
+     * @return lowercase Hex digits (ASCII) corresponding to the input bytes
+     */
+    private static byte[] hexBytes(byte[] bytes) {
+        byte[] hex = new byte[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0x0f];
         }
-        return hexString.toString();
+        return hex;
     }
 
     /**
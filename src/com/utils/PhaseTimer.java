@@ -0,0 +1,50 @@
+package com.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Davide Chen
+ *
+ * Measures the consecutive phases of a procedure (e.g. the shutdown of the server):
+ * each phase starts when the previous one ends.
+ * The phases can be ended by different threads, one after the other
+ */
+public class PhaseTimer {
+    private final String name;              // of the procedure
+    private final StringBuilder phases;     // report of the phases ended
+    private final long start;               // ns, start of the first phase
+    private long last;                      // ns, start of the current phase
+
+    /**
+     * @param name of the procedure, the first phase starts now
+     */
+    public PhaseTimer(String name) {
+        this.name = name;
+        this.phases = new StringBuilder();
+        this.start = System.nanoTime();
+        this.last = this.start;
+    }
+
+    /**
+     * Ends the current phase, the next one starts now
+     *
+     * @param phase name of the phase ended
+     *
+     * @return duration of the phase in ms
+     */
+    public synchronized long end(String phase) {
+        long now = System.nanoTime();
+        long millis = TimeUnit.NANOSECONDS.toMillis(now - last);
+        last = now;
+        phases.append(String.format("  %-24s %6d ms%n", phase, millis));
+        return millis;
+    }
+
+    /**
+     * @return duration of each phase ended and of the whole procedure, one per line
+     */
+    public synchronized String report() {
+        return String.format("%s:%n%s  %-24s %6d ms%n", name, phases, "total",
+                TimeUnit.NANOSECONDS.toMillis(last - start));
+    }
+}
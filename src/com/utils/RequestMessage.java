@@ -1,6 +1,7 @@
 package com.utils;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.io.Serializable;
 import java.util.Arrays;
@@ -12,17 +13,33 @@ import java.util.List;
  * Identifies a request message that a client sends to the server
  */
 public class RequestMessage implements Serializable {
+    private long id;                // chosen by the client, echoed in the response
     private String command;
     private List<String> arguments;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<RequestMessage> requests;  // sub-requests of a BATCH_CMD, null otherwise
 
     public RequestMessage(String command, String... arguments) {
         this.command = command;
         this.arguments = Arrays.asList(arguments);
     }
 
+    public RequestMessage(String command, List<RequestMessage> requests, String... arguments) {
+        this(command, arguments);
+        this.requests = requests;
+    }
+
     @JsonCreator
     private RequestMessage() {}
 
+    public long getId() {
+        return this.id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getCommand() {
         return this.command;
     }
@@ -30,4 +47,8 @@ public class RequestMessage implements Serializable {
     public List<String> getArguments() {
         return this.arguments;
     }
+
+    public List<RequestMessage> getRequests() {
+        return this.requests;
+    }
 }
@@ -1,8 +1,11 @@
 package com.utils;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.JsonNode;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * @author Davide Chen
@@ -10,11 +13,16 @@ import java.io.Serializable;
  * Identifies a response message that the server sends to the client
  */
 public class ResponseMessage implements Serializable {
+    private long id;                // id of the request this message responds to
     private int statusCode;         // status code resulting from the operation
-    private String responseBody;    // message body (can be null)
-    private String responseBody2;   // second message body used only for LOGIN_CMD
+    private JsonNode responseBody;  // message body (can be null), embedded in the message
+    private JsonNode responseBody2; // second message body used only for LOGIN_CMD
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<ResponseMessage> responses;    // responses to the sub-requests of a BATCH_CMD, null otherwise
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String sessionToken;    // token to resume the session, sent only with the response to LOGIN_CMD
 
-    public ResponseMessage(int statusCode, String responseBody, String responseBody2) {
+    public ResponseMessage(int statusCode, JsonNode responseBody, JsonNode responseBody2) {
         this.statusCode = statusCode;
         this.responseBody = responseBody;
         this.responseBody2 = responseBody2;
@@ -23,15 +31,39 @@ public class ResponseMessage implements Serializable {
     @JsonCreator
     private ResponseMessage() {}
 
+    public long getId() {
+        return this.id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public int getStatusCode() {
         return this.statusCode;
     }
 
-    public String getResponseBody() {
+    public JsonNode getResponseBody() {
         return this.responseBody;
     }
 
-    public String getResponseBody2() {
+    public JsonNode getResponseBody2() {
         return responseBody2;
     }
+
+    public List<ResponseMessage> getResponses() {
+        return this.responses;
+    }
+
+    public void setResponses(List<ResponseMessage> responses) {
+        this.responses = responses;
+    }
+
+    public String getSessionToken() {
+        return this.sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
 }
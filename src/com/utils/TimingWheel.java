@@ -0,0 +1,116 @@
+package com.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * @author Davide Chen
+ *
+ * Hashed timing wheel: the timeouts are hashed by their deadline (in ticks) into a ring of slots,
+ * so scheduling and cancelling are O(1) and advancing the wheel only examines the slots of the elapsed ticks.
+ * A timeout expires within one tick after its deadline.
+ *
+ * It is not thread safe, it must be used by a single thread (e.g. the selector loop)
+ */
+public class TimingWheel<T> {
+    private final List<List<Timeout<T>>> slots; // timeouts by deadline tick modulo the number of slots
+    private final long tickMillis;              // duration of a tick
+    private long lastTick;                      // last tick examined
+    private int size;                           // timeouts scheduled, cancelled ones included
+
+    /**
+     * @param slots number of slots of the wheel
+     * @param tickMillis duration of a tick, the resolution of the timeouts
+     * @param now current time (ms), of the same clock used for schedule() and advance()
+     */
+    public TimingWheel(int slots, long tickMillis, long now) {
+        this.slots = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++)
+            this.slots.add(new ArrayList<>());
+        this.tickMillis = tickMillis;
+        this.lastTick = now / tickMillis;
+        this.size = 0;
+    }
+
+    public long getTickMillis() {
+        return this.tickMillis;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param value passed to the expiration callback of advance()
+     * @param delayMillis time before the expiration
+     * @param now current time (ms)
+     *
+     * @return the timeout, that can be cancelled
+     */
+    public Timeout<T> schedule(T value, long delayMillis, long now) {
+        // rounded up, the timeout never expires before its deadline
+        long deadline = Math.max((now + Math.max(delayMillis, 0) + tickMillis - 1) / tickMillis, lastTick + 1);
+        Timeout<T> timeout = new Timeout<>(value, deadline);
+        slots.get((int) (deadline % slots.size())).add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Examines the ticks elapsed since the last call
+     *
+     * @param now current time (ms)
+     * @param expired called with the value of each timeout expired and not cancelled
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long tick = now / tickMillis;
+        // after a long pause each slot is examined once
+        long first = Math.max(lastTick + 1, tick - slots.size() + 1);
+        List<Timeout<T>> fired = null;
+        for (long t = first; t <= tick; t++) {
+            List<Timeout<T>> slot = slots.get((int) (t % slots.size()));
+            // the timeouts of the following rounds remain in the slot
+            int kept = 0;
+            for (Timeout<T> timeout : slot) {
+                if (timeout.cancelled) {
+                    size--;
+                } else if (timeout.deadline <= tick) {
+                    size--;
+                    if (fired == null) fired = new ArrayList<>();
+                    fired.add(timeout);
+                } else {
+                    slot.set(kept++, timeout);
+                }
+            }
+            slot.subList(kept, slot.size()).clear();
+        }
+        lastTick = Math.max(lastTick, tick);
+
+        // the callbacks can schedule new timeouts
+        if (fired == null) return;
+        for (Timeout<T> timeout : fired) {
+            if (!timeout.cancelled)
+                expired.accept(timeout.value);
+        }
+    }
+
+    /**
+     * Timeout scheduled on the wheel
+     */
+    public static class Timeout<T> {
+        private final T value;
+        private final long deadline;    // tick of the expiration
+        private boolean cancelled;      // removed from the wheel when its slot is examined
+
+        private Timeout(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+            this.cancelled = false;
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+}
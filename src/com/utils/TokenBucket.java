@@ -0,0 +1,50 @@
+package com.utils;
+
+/**
+ * @author Davide Chen
+ *
+ * Token bucket: the tokens are refilled at a constant rate up to the capacity (burst),
+ * each operation consumes a token. Thread safe
+ */
+public class TokenBucket {
+    private final double ratePerNano;   // tokens added per nanosecond
+    private final double capacity;      // max tokens
+    private double tokens;              // tokens available at lastRefill
+    private long lastRefill;            // System.nanoTime() of the last refill
+
+    /**
+     * @param ratePerSecond tokens added every second
+     * @param capacity max tokens, the bucket starts full
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerNano = ratePerSecond / 1_000_000_000.0;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Consumes a token if available
+     *
+     * @return 0 if the token has been consumed,
+     *         otherwise the nanoseconds to wait before a token is available
+     */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / ratePerNano);
+    }
+
+    /**
+     * @return true if the bucket is empty, without consuming tokens
+     */
+    public synchronized boolean isEmpty() {
+        return Math.min(capacity, tokens + (System.nanoTime() - lastRefill) * ratePerNano) < 1;
+    }
+}